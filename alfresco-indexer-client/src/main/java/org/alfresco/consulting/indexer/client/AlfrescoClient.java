@@ -1,10 +1,18 @@
 package org.alfresco.consulting.indexer.client;
 
 import java.io.InputStream;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 public interface AlfrescoClient {
+  /**
+   * Page size asking the changes feed not to return any node of a stream (transactions or ACL
+   * changesets), e.g. because that stream has already been drained
+   */
+  int SKIP = -1;
+
   /**
    * Fetches nodes from Alfresco which has changed since the provided timestamp.
    *
@@ -17,6 +25,57 @@ public interface AlfrescoClient {
   AlfrescoResponse fetchNodes(long lastTransactionId, long lastAclChangesetId) throws
       AlfrescoDownException;
 
+  /**
+   * Same as {@link #fetchNodes(long, long)}, but with explicit page sizes instead of the ones
+   * configured on the Alfresco side.
+   *
+   * @param maxTransactions
+   *         the maximum number of transaction nodes to return, after lastTransactionId
+   * @param maxAclChangesets
+   *         the maximum number of ACL changeset nodes to return, after lastAclChangesetId
+   */
+  AlfrescoResponse fetchNodes(long lastTransactionId, long lastAclChangesetId, int maxTransactions,
+                              int maxAclChangesets) throws AlfrescoDownException;
+
+  /**
+   * Same as {@link #fetchNodes(long, long, int, int)}, but resuming from a cursor returned by
+   * {@link AlfrescoResponse#getCursor()}, so that transactions and ACL changesets touching more
+   * nodes than a page can hold are not skipped.
+   *
+   * @param maxTransactions
+   *         the maximum number of transaction nodes to return; 0 to use the Alfresco default, {@link #SKIP}
+   *         to leave transactions where the cursor is
+   * @param maxAclChangesets
+   *         the maximum number of ACL changeset nodes to return; 0 to use the Alfresco default, {@link #SKIP}
+   *         to leave ACL changesets where the cursor is
+   */
+  AlfrescoResponse fetchNodes(ChangesCursor cursor, int maxTransactions, int maxAclChangesets)
+      throws AlfrescoDownException;
+
+  /**
+   * Fetches a page of the snapshot of the store: its nodes, ordered by id, with the fields of the changes
+   * feed. Walking
+   * the whole snapshot is much faster than walking the changes feed from its start, in order to index a
+   * store for the first time.
+   *
+   * @param lastNodeId
+   *         the id of the last node already read, as returned by {@link AlfrescoSnapshot#getLastNodeId()};
+   *         0 to start from the first node
+   * @param maxNodes
+   *         the maximum number of nodes to return; 0 to use the Alfresco default
+   * @return an {@link AlfrescoSnapshot}, to be closed by the caller
+   */
+  AlfrescoSnapshot fetchSnapshot(long lastNodeId, int maxNodes) throws AlfrescoDownException;
+
+  /**
+   * Same as {@link #fetchSnapshot(long, int)}, but only within a range of node ids, so that several
+   * ranges of the snapshot can be fetched in parallel (see {@link AlfrescoSnapshot#getMaxNodeId()}).
+   *
+   * @param toNodeId
+   *         the id of the last node of the range, or null for a range ending with the last node
+   */
+  AlfrescoSnapshot fetchSnapshot(long lastNodeId, Long toNodeId, int maxNodes) throws AlfrescoDownException;
+
   /**
    * Fetches metadata from Alfresco for a given node.
    * @param nodeUuid
@@ -25,6 +84,16 @@ public interface AlfrescoClient {
    */
   Map<String, Object> fetchMetadata(String nodeUuid) throws AlfrescoDownException;
 
+  /**
+   * Fetches metadata from Alfresco for several nodes, with one single request.
+   * @param nodeUuids
+   *        the UUIDs of the nodes; the number of UUIDs must not exceed the limit configured
+   *        on the Alfresco side (indexer.details.maxbatchsize)
+   * @return a map with metadata (as returned by {@link #fetchMetadata(String)}), keyed by node UUID;
+   *         nodes that do not exist in Alfresco are not part of the map
+   */
+  Map<String, Map<String, Object>> fetchMetadataBatch(Collection<String> nodeUuids) throws AlfrescoDownException;
+
   /**
    * Fetches authorities for the provided username.
    * @param username
@@ -37,12 +106,51 @@ public interface AlfrescoClient {
    * @return a list of {@link AlfrescoUser}
    */
   List<AlfrescoUser> fetchAllUsersAuthorities() throws AlfrescoDownException;
+
+  /**
+   * Fetches authorities for one page of all users, sorted by username.
+   * @param skipCount the number of users to skip
+   * @param maxItems the maximum number of users to return, up to the limit configured on the Alfresco
+   *        side (indexer.authorities.maxitemslimit)
+   * @return a list of {@link AlfrescoUser}; less than maxItems users when it is the last page
+   */
+  List<AlfrescoUser> fetchUsersAuthorities(int skipCount, int maxItems) throws AlfrescoDownException;
+
+  /**
+   * Iterates over the authorities of all users, fetching them lazily one page at a time (with
+   * {@link #fetchUsersAuthorities(int, int)}), so that all users are never held in memory at once.
+   * @param pageSize the number of users fetched per request
+   * @return an iterator of {@link AlfrescoUser}, sorted by username; it throws
+   *         {@link AlfrescoDownException} when a page cannot be fetched
+   */
+  Iterator<AlfrescoUser> iterateAllUsersAuthorities(int pageSize);
+
+  /**
+   * Fetches authorities for the users whose authorities changed after the given position, i.e. that
+   * were added to or removed from a group, or that belong to a group that was, along with the users
+   * deleted meanwhile.
+   * @param lastTransactionId the last transaction already applied; a transaction beyond the last one
+   *        (e.g. Long.MAX_VALUE) returns no user, only the current position
+   * @param lastTransactionNodeId the last person or group node returned for lastTransactionId, or null
+   * @param maxItems the number of users after which a page ends (a group whose users reach it is
+   *        returned whole); 0 for the limit configured on the Alfresco side (indexer.authorities.maxitemslimit)
+   * @return an {@link AlfrescoUserChanges}, with the position to send back in order to get the next changes
+   */
+  AlfrescoUserChanges fetchUsersAuthoritiesChanges(long lastTransactionId, Long lastTransactionNodeId, int maxItems)
+      throws AlfrescoDownException;
   
   /**
    * Fetches Document Binary Content
    * 
    * @param contentUrlPath URL of the content
-   * @return Document Binary Content
+   * @return Document Binary Content; it must be closed by the caller, in order to release the
+   *         underlying connection
    */
   InputStream fetchContent(String contentUrlPath);
+
+  /**
+   * Releases all resources (i.e. pooled HTTP connections) held by this client; the client
+   * cannot be used anymore once closed.
+   */
+  void close();
 }
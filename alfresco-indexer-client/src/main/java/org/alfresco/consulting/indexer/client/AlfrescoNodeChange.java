@@ -0,0 +1,121 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.util.Map;
+
+/**
+ * A node returned by the changes feed, with the version, modified date, ACL changeset and content
+ * data it had when the page was read; comparing them with the ones of a previous crawl tells whether
+ * the node really changed, without fetching its details.
+ */
+public class AlfrescoNodeChange {
+  static final String UUID = "uuid";
+  static final String TYPE = "type";
+  static final String DELETED = "deleted";
+  static final String VERSION = "version";
+  static final String MODIFIED = "modified";
+  static final String ACL_CHANGESET_ID = "aclChangesetId";
+  static final String CONTENT_URL = "contentUrl";
+  static final String CONTENT_SIZE = "contentSize";
+  static final String MIMETYPE = "mimetype";
+
+  private final String uuid;
+  private final String type;
+  private final boolean deleted;
+  private final Long version;
+  private final String modified;
+  private final Long aclChangesetId;
+  private final String contentUrl;
+  private final Long contentSize;
+  private final String mimetype;
+
+  public AlfrescoNodeChange(String uuid, String type, boolean deleted, Long version, String modified,
+                            Long aclChangesetId, String contentUrl, Long contentSize, String mimetype) {
+    this.uuid = uuid;
+    this.type = type;
+    this.deleted = deleted;
+    this.version = version;
+    this.modified = modified;
+    this.aclChangesetId = aclChangesetId;
+    this.contentUrl = contentUrl;
+    this.contentSize = contentSize;
+    this.mimetype = mimetype;
+  }
+
+  /**
+   * @return the node described by a document of the changes feed; fields missing from the document
+   *         (e.g. when it comes from an older version of the webscripts) are null
+   */
+  public static AlfrescoNodeChange fromDocument(Map<String, Object> document) {
+    return new AlfrescoNodeChange(getString(document, UUID), getString(document, TYPE),
+        Boolean.parseBoolean(getString(document, DELETED)), getLong(document, VERSION),
+        getString(document, MODIFIED), getLong(document, ACL_CHANGESET_ID), getString(document, CONTENT_URL),
+        getLong(document, CONTENT_SIZE), getString(document, MIMETYPE));
+  }
+
+  private static String getString(Map<String, Object> document, String name) {
+    Object value = document.get(name);
+    return (value == null ? null : value.toString());
+  }
+
+  private static Long getLong(Map<String, Object> document, String name) {
+    Object value = document.get(name);
+    if (value == null) {
+      return null;
+    }
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    }
+    try {
+      return Long.valueOf(value.toString());
+    } catch (NumberFormatException e) {
+      throw new AlfrescoParseException("The " + name + " of node " + document.get(UUID) + " is not a number: "
+          + value, e);
+    }
+  }
+
+  public String getUuid() {
+    return uuid;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public boolean isDeleted() {
+    return deleted;
+  }
+
+  public Long getVersion() {
+    return version;
+  }
+
+  /**
+   * @return the cm:modified date, as stored by the repository (ISO 8601)
+   */
+  public String getModified() {
+    return modified;
+  }
+
+  /**
+   * @return the ACL changeset of the ACL the node uses
+   */
+  public Long getAclChangesetId() {
+    return aclChangesetId;
+  }
+
+  /**
+   * @return the URL of the node content in the content store, or null if the node has no content;
+   *         content URLs are never reused, so a different URL means different content
+   */
+  public String getContentUrl() {
+    return contentUrl;
+  }
+
+  public Long getContentSize() {
+    return contentSize;
+  }
+
+  public String getMimetype() {
+    return mimetype;
+  }
+}
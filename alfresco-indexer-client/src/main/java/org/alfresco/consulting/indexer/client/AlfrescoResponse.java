@@ -1,55 +1,169 @@
 package org.alfresco.consulting.indexer.client;
 
+import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-public class AlfrescoResponse {
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+
+public class AlfrescoResponse implements Closeable {
   private final long lastTransactionId;
   private final long lastAclChangesetId;
+  private final Long lastTransactionNodeId;
+  private final Long lastAclNodeId;
   private final String storeId;
   private final String storeProtocol;
   private final Iterable<Map<String, Object>> documents;
+  private final NodeChangesReader reader;
+  private boolean consumed;
 
   public AlfrescoResponse(long lastTransactionId, long lastAclChangesetId, String storeId,
                           String storeProtocol, Iterable<Map<String, Object>> documents) {
-    this.lastTransactionId = lastTransactionId;
-    this.lastAclChangesetId = lastAclChangesetId;
+    this(new ChangesCursor(lastTransactionId, lastAclChangesetId), storeId, storeProtocol, documents);
+  }
+
+  public AlfrescoResponse(ChangesCursor cursor, String storeId, String storeProtocol,
+                          Iterable<Map<String, Object>> documents) {
+    this.lastTransactionId = cursor.getLastTransactionId();
+    this.lastAclChangesetId = cursor.getLastAclChangesetId();
+    this.lastTransactionNodeId = cursor.getLastTransactionNodeId();
+    this.lastAclNodeId = cursor.getLastAclNodeId();
     this.storeId = storeId;
     this.storeProtocol = storeProtocol;
     this.documents = documents;
+    this.reader = null;
   }
 
   public AlfrescoResponse(long lastTransactionId, long lastAclChangesetId) {
     this(lastTransactionId, lastAclChangesetId, "", "", Collections.<Map<String, Object>>emptyList());
   }
 
+  /**
+   * Creates a streamed response, whose documents are decoded while being iterated
+   */
+  AlfrescoResponse(NodeChangesReader reader) {
+    this.lastTransactionId = 0L;
+    this.lastAclChangesetId = 0L;
+    this.lastTransactionNodeId = null;
+    this.lastAclNodeId = null;
+    this.storeId = "";
+    this.storeProtocol = "";
+    this.documents = null;
+    this.reader = reader;
+  }
+
   public long getLastTransactionId() {
+    if (reader != null) {
+      return reader.getLong(NodeChangesReader.LAST_TXN_ID, 0L);
+    }
     return lastTransactionId;
   }
 
   public long getLastAclChangesetId() {
+    if (reader != null) {
+      return reader.getLong(NodeChangesReader.LAST_ACL_CS_ID, 0L);
+    }
     return lastAclChangesetId;
   }
 
+  /**
+   * @return the last node returned for {@link #getLastTransactionId()}, or null if that
+   *         transaction has been fully returned
+   */
+  public Long getLastTransactionNodeId() {
+    if (reader != null) {
+      return reader.getOptionalLong(NodeChangesReader.LAST_TXN_NODE_ID);
+    }
+    return lastTransactionNodeId;
+  }
+
+  /**
+   * @return the last node returned for {@link #getLastAclChangesetId()}, or null if that ACL
+   *         changeset has been fully returned
+   */
+  public Long getLastAclNodeId() {
+    if (reader != null) {
+      return reader.getOptionalLong(NodeChangesReader.LAST_ACL_NODE_ID);
+    }
+    return lastAclNodeId;
+  }
+
+  /**
+   * @return the position to resume the changes feed from, after this response
+   */
+  public ChangesCursor getCursor() {
+    return new ChangesCursor(getLastTransactionId(), getLastTransactionNodeId(), getLastAclChangesetId(),
+        getLastAclNodeId());
+  }
+
   public String getStoreId() {
+    if (reader != null) {
+      return reader.getString(NodeChangesReader.STORE_ID);
+    }
     return storeId;
   }
 
   public String getStoreProtocol() {
+    if (reader != null) {
+      return reader.getString(NodeChangesReader.STORE_PROTOCOL);
+    }
     return storeProtocol;
   }
 
+  /**
+   * @return the documents of this response; when the response is streamed, they can only be
+   *         iterated once
+   */
   public Iterable<Map<String,Object>> getDocuments() {
-    return documents;
+    if (reader == null) {
+      return documents;
+    }
+    return new Iterable<Map<String, Object>>() {
+      @Override
+      public Iterator<Map<String, Object>> iterator() {
+        if (consumed) {
+          throw new IllegalStateException("The documents of a streamed response can only be iterated once");
+        }
+        consumed = true;
+        return reader;
+      }
+    };
+  }
+
+  /**
+   * @return the documents of this response as typed node changes, carrying the version, modified
+   *         date and content data of each node; same as {@link #getDocuments()}, they can only be
+   *         iterated once when the response is streamed
+   */
+  public Iterable<AlfrescoNodeChange> getNodeChanges() {
+    return Iterables.transform(getDocuments(), new Function<Map<String, Object>, AlfrescoNodeChange>() {
+      @Override
+      public AlfrescoNodeChange apply(Map<String, Object> document) {
+        return AlfrescoNodeChange.fromDocument(document);
+      }
+    });
   }
 
   public List<Map<String, Object>> getDocumentList() {
     List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
-    for (Map<String, Object> m : documents) {
+    for (Map<String, Object> m : getDocuments()) {
       list.add(m);
     }
     return list;
   }
-}
\ No newline at end of file
+
+  /**
+   * Releases the underlying HTTP connection, if the response is streamed and has not been
+   * fully consumed yet
+   */
+  @Override
+  public void close() {
+    if (reader != null) {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A page of the snapshot of a store: all its (non deleted) nodes following a node id, each one with
+ * the fields of the changes feed (see {@link AlfrescoNodeChange}); same as for the changes feed, their
+ * metadata is fetched with {@link AlfrescoClient#fetchMetadataBatch(java.util.Collection)}.
+ *
+ * Documents are decoded while being iterated, hence they can only be iterated once; the response must
+ * be closed in order to release the underlying HTTP connection.
+ */
+public class AlfrescoSnapshot implements Closeable {
+  private final SnapshotReader reader;
+  private boolean consumed;
+
+  AlfrescoSnapshot(SnapshotReader reader) {
+    this.reader = reader;
+  }
+
+  public Iterable<Map<String, Object>> getDocuments() {
+    return new Iterable<Map<String, Object>>() {
+      @Override
+      public Iterator<Map<String, Object>> iterator() {
+        if (consumed) {
+          throw new IllegalStateException("The documents of a snapshot can only be iterated once");
+        }
+        consumed = true;
+        return reader;
+      }
+    };
+  }
+
+  /**
+   * @return the id of the last node of this page, to get the next page from, or null if this page is
+   *         the last one
+   */
+  public Long getLastNodeId() {
+    return reader.getOptionalLong(SnapshotReader.LAST_NODE_ID);
+  }
+
+  /**
+   * @return the id of the last node of the store when this page was read, or null if Alfresco did not
+   *         return it; nodes created after the first page of the snapshot come with the changes feed,
+   *         so the snapshot can be split into ranges of node ids up to the one returned with that page
+   */
+  public Long getMaxNodeId() {
+    return reader.getOptionalLong(SnapshotReader.MAX_NODE_ID);
+  }
+
+  /**
+   * @return the position of the changes feed when this page was read; the changes feed must be
+   *         resumed from the position returned with the first page of the snapshot, so that the nodes
+   *         changed while the snapshot was being read are not missed
+   */
+  public ChangesCursor getCursor() {
+    return new ChangesCursor(reader.getLong(SnapshotReader.LAST_TXN_ID),
+        reader.getLong(SnapshotReader.LAST_ACL_CS_ID));
+  }
+
+  @Override
+  public void close() {
+    reader.close();
+  }
+}
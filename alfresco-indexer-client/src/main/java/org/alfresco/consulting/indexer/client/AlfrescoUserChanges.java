@@ -0,0 +1,53 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of the users whose authorities changed after a transaction, with their current authorities,
+ * and of the users deleted meanwhile, along with the position reached in the transactions.
+ */
+public class AlfrescoUserChanges {
+  private final List<AlfrescoUser> users;
+  private final List<String> deletedUsernames;
+  private final long lastTransactionId;
+  private final Long lastTransactionNodeId;
+
+  public AlfrescoUserChanges(List<AlfrescoUser> users, long lastTransactionId, Long lastTransactionNodeId) {
+    this(users, Collections.<String>emptyList(), lastTransactionId, lastTransactionNodeId);
+  }
+
+  public AlfrescoUserChanges(List<AlfrescoUser> users, List<String> deletedUsernames, long lastTransactionId,
+                             Long lastTransactionNodeId) {
+    this.users = users;
+    this.deletedUsernames = deletedUsernames;
+    this.lastTransactionId = lastTransactionId;
+    this.lastTransactionNodeId = lastTransactionNodeId;
+  }
+
+  public List<AlfrescoUser> getUsers() {
+    return users;
+  }
+
+  /**
+   * @return the usernames of the users deleted in the transactions of this page
+   */
+  public List<String> getDeletedUsernames() {
+    return deletedUsernames;
+  }
+
+  /**
+   * @return the transaction to send back in order to get the next changes
+   */
+  public long getLastTransactionId() {
+    return lastTransactionId;
+  }
+
+  /**
+   * @return the last person or group node returned for {@link #getLastTransactionId()}, when the page
+   *         is full; null once the changes have caught up with the last transaction
+   */
+  public Long getLastTransactionNodeId() {
+    return lastTransactionNodeId;
+  }
+}
@@ -0,0 +1,75 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * An {@link AlfrescoClient} whose requests can also be sent without blocking the calling thread,
+ * so that a few threads can keep many requests in flight.
+ *
+ * Returned futures fail with {@link AlfrescoDownException} or {@link AlfrescoParseException}, just
+ * like the blocking methods do; cancelling a future aborts the underlying request.
+ */
+public interface AsyncAlfrescoClient extends AlfrescoClient {
+  /**
+   * @see AlfrescoClient#fetchNodes(long, long)
+   */
+  ListenableFuture<AlfrescoResponse> fetchNodesAsync(long lastTransactionId, long lastAclChangesetId);
+
+  /**
+   * @see AlfrescoClient#fetchNodes(long, long, int, int)
+   */
+  ListenableFuture<AlfrescoResponse> fetchNodesAsync(long lastTransactionId, long lastAclChangesetId,
+                                                     int maxTransactions, int maxAclChangesets);
+
+  /**
+   * @see AlfrescoClient#fetchNodes(ChangesCursor, int, int)
+   */
+  ListenableFuture<AlfrescoResponse> fetchNodesAsync(ChangesCursor cursor, int maxTransactions,
+                                                     int maxAclChangesets);
+
+  /**
+   * @see AlfrescoClient#fetchSnapshot(long, int)
+   */
+  ListenableFuture<AlfrescoSnapshot> fetchSnapshotAsync(long lastNodeId, int maxNodes);
+
+  /**
+   * @see AlfrescoClient#fetchSnapshot(long, Long, int)
+   */
+  ListenableFuture<AlfrescoSnapshot> fetchSnapshotAsync(long lastNodeId, Long toNodeId, int maxNodes);
+
+  /**
+   * @see AlfrescoClient#fetchMetadata(String)
+   */
+  ListenableFuture<Map<String, Object>> fetchMetadataAsync(String nodeUuid);
+
+  /**
+   * @see AlfrescoClient#fetchMetadataBatch(Collection)
+   */
+  ListenableFuture<Map<String, Map<String, Object>>> fetchMetadataBatchAsync(Collection<String> nodeUuids);
+
+  /**
+   * @see AlfrescoClient#fetchUserAuthorities(String)
+   */
+  ListenableFuture<AlfrescoUser> fetchUserAuthoritiesAsync(String username);
+
+  /**
+   * @see AlfrescoClient#fetchUsersAuthorities(int, int)
+   */
+  ListenableFuture<List<AlfrescoUser>> fetchUsersAuthoritiesAsync(int skipCount, int maxItems);
+
+  /**
+   * @see AlfrescoClient#fetchUsersAuthoritiesChanges(long, Long, int)
+   */
+  ListenableFuture<AlfrescoUserChanges> fetchUsersAuthoritiesChangesAsync(long lastTransactionId,
+                                                                          Long lastTransactionNodeId, int maxItems);
+
+  /**
+   * @see AlfrescoClient#fetchContent(String)
+   */
+  ListenableFuture<InputStream> fetchContentAsync(String contentUrlPath);
+}
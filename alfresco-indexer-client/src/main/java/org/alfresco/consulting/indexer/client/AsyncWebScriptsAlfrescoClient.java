@@ -0,0 +1,433 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.client.methods.ZeroCopyConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * An {@link AsyncAlfrescoClient} backed by a non-blocking HTTP client: requests are multiplexed
+ * over a few I/O threads, so that the number of requests in flight is only bound by the size of
+ * the connection pool.
+ *
+ * Since responses are received without blocking, they are fully read before being handed out:
+ * JSON payloads are buffered in memory, while contents are spooled to temporary files, which are
+ * deleted once the returned streams are closed.
+ */
+public class AsyncWebScriptsAlfrescoClient implements AsyncAlfrescoClient {
+  private final WebScriptsEndpoint endpoint;
+  private final WebScriptsJsonMapper mapper = new WebScriptsJsonMapper();
+  private final CloseableHttpAsyncClient httpClient;
+
+  private final Logger logger = LoggerFactory.getLogger(AsyncWebScriptsAlfrescoClient.class);
+
+  public AsyncWebScriptsAlfrescoClient(String protocol, String hostname,
+                                       String endpoint, String storeProtocol, String storeId) {
+    this(protocol, hostname, endpoint, storeProtocol, storeId, null, null,
+        WebScriptsAlfrescoClient.DEFAULT_MAX_CONNECTIONS,
+        WebScriptsAlfrescoClient.DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+  }
+
+  /**
+   * @param maxConnections
+   *        the maximum number of pooled connections, across all routes
+   * @param maxConnectionsPerRoute
+   *        the maximum number of pooled connections towards a single Alfresco host
+   */
+  public AsyncWebScriptsAlfrescoClient(String protocol, String hostname,
+                                       String endpoint, String storeProtocol, String storeId, String username,
+                                       String password, int maxConnections, int maxConnectionsPerRoute) {
+    this.endpoint = new WebScriptsEndpoint(protocol, hostname, endpoint, storeProtocol, storeId,
+        username, password);
+
+    PoolingNHttpClientConnectionManager connectionManager;
+    try {
+      connectionManager = new PoolingNHttpClientConnectionManager(
+          new DefaultConnectingIOReactor(IOReactorConfig.DEFAULT));
+    } catch (IOReactorException e) {
+      throw new AlfrescoDownException("Unable to start the HTTP I/O reactor", e);
+    }
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+    httpClient = HttpAsyncClients.custom()
+        .setConnectionManager(connectionManager)
+        .setKeepAliveStrategy(new WebScriptsAlfrescoClient.DefaultKeepAliveStrategy(
+            WebScriptsAlfrescoClient.KEEP_ALIVE_MILLIS))
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectionRequestTimeout(WebScriptsAlfrescoClient.CONNECTION_REQUEST_TIMEOUT_MILLIS)
+            .build())
+        .build();
+    httpClient.start();
+  }
+
+  /**
+   * Restricts the changes feed and the snapshot to one shard of the nodes (and ACLs) of the store, so
+   * that several clients, each with its own cursor, can share the changes of the store
+   *
+   * @param shardIndex
+   *        the index of the shard, from 0 to shardCount - 1
+   * @param shardCount
+   *        the number of shards; 1 (the default) for the whole store
+   */
+  public void setShard(int shardIndex, int shardCount) {
+    endpoint.setShard(shardIndex, shardCount);
+  }
+
+  @Override
+  public void close() {
+    try {
+      httpClient.close();
+    } catch (IOException e) {
+      logger.warn("Failed to close the HTTP client.", e);
+    }
+  }
+
+  @Override
+  public ListenableFuture<AlfrescoResponse> fetchNodesAsync(long lastTransactionId,
+                                                            long lastAclChangesetId) {
+    return fetchNodesAsync(endpoint.changesRequest(lastTransactionId, lastAclChangesetId));
+  }
+
+  @Override
+  public ListenableFuture<AlfrescoResponse> fetchNodesAsync(long lastTransactionId, long lastAclChangesetId,
+                                                            int maxTransactions, int maxAclChangesets) {
+    return fetchNodesAsync(endpoint.changesRequest(lastTransactionId, lastAclChangesetId,
+        maxTransactions, maxAclChangesets));
+  }
+
+  @Override
+  public ListenableFuture<AlfrescoResponse> fetchNodesAsync(ChangesCursor cursor, int maxTransactions,
+                                                            int maxAclChangesets) {
+    return fetchNodesAsync(endpoint.changesRequest(cursor, maxTransactions, maxAclChangesets));
+  }
+
+  private ListenableFuture<AlfrescoResponse> fetchNodesAsync(HttpUriRequest request) {
+    return execute(request,
+        new ResponseHandler<AlfrescoResponse>() {
+          @Override
+          public AlfrescoResponse handleResponse(HttpResponse response) throws IOException {
+            InputStream content = response.getEntity().getContent();
+            return mapper.toNodeChanges(content, content);
+          }
+        });
+  }
+
+  @Override
+  public ListenableFuture<AlfrescoSnapshot> fetchSnapshotAsync(long lastNodeId, int maxNodes) {
+    return fetchSnapshotAsync(lastNodeId, null, maxNodes);
+  }
+
+  @Override
+  public ListenableFuture<AlfrescoSnapshot> fetchSnapshotAsync(long lastNodeId, Long toNodeId, int maxNodes) {
+    return execute(endpoint.snapshotRequest(lastNodeId, toNodeId, maxNodes),
+        new ResponseHandler<AlfrescoSnapshot>() {
+          @Override
+          public AlfrescoSnapshot handleResponse(HttpResponse response) throws IOException {
+            InputStream content = response.getEntity().getContent();
+            return mapper.toSnapshot(content, content);
+          }
+        });
+  }
+
+  @Override
+  public ListenableFuture<Map<String, Object>> fetchMetadataAsync(String nodeUuid) {
+    return execute(endpoint.metadataRequest(nodeUuid),
+        new ResponseHandler<Map<String, Object>>() {
+          @Override
+          public Map<String, Object> handleResponse(HttpResponse response) throws IOException {
+            return mapper.toMetadata(response.getEntity().getContent());
+          }
+        });
+  }
+
+  @Override
+  public ListenableFuture<Map<String, Map<String, Object>>> fetchMetadataBatchAsync(Collection<String> nodeUuids) {
+    if (nodeUuids.isEmpty()) {
+      return Futures.<Map<String, Map<String, Object>>>immediateFuture(
+          new HashMap<String, Map<String, Object>>());
+    }
+    return execute(endpoint.metadataBatchRequest(mapper.toMetadataBatchRequest(nodeUuids), nodeUuids.size()),
+        new ResponseHandler<Map<String, Map<String, Object>>>() {
+          @Override
+          public Map<String, Map<String, Object>> handleResponse(HttpResponse response) throws IOException {
+            return mapper.toMetadataBatch(response.getEntity().getContent());
+          }
+        });
+  }
+
+  @Override
+  public ListenableFuture<AlfrescoUser> fetchUserAuthoritiesAsync(String username) {
+    return execute(endpoint.userAuthoritiesRequest(username),
+        new ResponseHandler<AlfrescoUser>() {
+          @Override
+          public AlfrescoUser handleResponse(HttpResponse response) throws IOException {
+            return mapper.toUser(response.getEntity().getContent());
+          }
+        });
+  }
+
+  @Override
+  public ListenableFuture<List<AlfrescoUser>> fetchUsersAuthoritiesAsync(int skipCount, int maxItems) {
+    return execute(endpoint.usersAuthoritiesRequest(skipCount, maxItems),
+        new ResponseHandler<List<AlfrescoUser>>() {
+          @Override
+          public List<AlfrescoUser> handleResponse(HttpResponse response) throws IOException {
+            return mapper.toUsers(response.getEntity().getContent());
+          }
+        });
+  }
+
+  @Override
+  public ListenableFuture<AlfrescoUserChanges> fetchUsersAuthoritiesChangesAsync(long lastTransactionId,
+                                                                                 Long lastTransactionNodeId,
+                                                                                 int maxItems) {
+    return execute(endpoint.usersAuthoritiesChangesRequest(lastTransactionId, lastTransactionNodeId, maxItems),
+        new ResponseHandler<AlfrescoUserChanges>() {
+          @Override
+          public AlfrescoUserChanges handleResponse(HttpResponse response) throws IOException {
+            return mapper.toUserChanges(response.getEntity().getContent());
+          }
+        });
+  }
+
+  @Override
+  public ListenableFuture<InputStream> fetchContentAsync(String contentUrlPath) {
+    final SettableFuture<InputStream> result = SettableFuture.create();
+    final File file;
+    ZeroCopyConsumer<File> consumer;
+    try {
+      file = File.createTempFile("alfresco-content", ".tmp");
+      consumer = new ZeroCopyConsumer<File>(file) {
+        @Override
+        protected File process(HttpResponse response, File file, ContentType contentType) {
+          return file;
+        }
+      };
+    } catch (IOException e) {
+      result.setException(new AlfrescoDownException("Unable to spool the content", e));
+      return result;
+    }
+
+    Future<File> download = httpClient.execute(
+        HttpAsyncMethods.create(endpoint.contentRequest(contentUrlPath)), consumer,
+        new FutureCallback<File>() {
+          @Override
+          public void completed(File spooled) {
+            try {
+              InputStream content = new SpooledContentStream(spooled);
+              if (!result.set(content)) {
+                // Nobody is going to read the content anymore
+                content.close();
+              }
+            } catch (IOException e) {
+              discard(file);
+              result.setException(new AlfrescoDownException("Unable to read the spooled content", e));
+            }
+          }
+
+          @Override
+          public void failed(Exception e) {
+            discard(file);
+            result.setException(new AlfrescoDownException("Alfresco appears to be down", e));
+          }
+
+          @Override
+          public void cancelled() {
+            discard(file);
+            result.cancel(false);
+          }
+        });
+    abortOnCancel(result, download);
+    return result;
+  }
+
+  @Override
+  public AlfrescoResponse fetchNodes(long lastTransactionId, long lastAclChangesetId) {
+    return await(fetchNodesAsync(lastTransactionId, lastAclChangesetId));
+  }
+
+  @Override
+  public AlfrescoResponse fetchNodes(long lastTransactionId, long lastAclChangesetId,
+                                     int maxTransactions, int maxAclChangesets) {
+    return await(fetchNodesAsync(lastTransactionId, lastAclChangesetId, maxTransactions,
+        maxAclChangesets));
+  }
+
+  @Override
+  public AlfrescoResponse fetchNodes(ChangesCursor cursor, int maxTransactions, int maxAclChangesets) {
+    return await(fetchNodesAsync(cursor, maxTransactions, maxAclChangesets));
+  }
+
+  @Override
+  public AlfrescoSnapshot fetchSnapshot(long lastNodeId, int maxNodes) {
+    return await(fetchSnapshotAsync(lastNodeId, maxNodes));
+  }
+
+  @Override
+  public AlfrescoSnapshot fetchSnapshot(long lastNodeId, Long toNodeId, int maxNodes) {
+    return await(fetchSnapshotAsync(lastNodeId, toNodeId, maxNodes));
+  }
+
+  @Override
+  public Map<String, Object> fetchMetadata(String nodeUuid) {
+    return await(fetchMetadataAsync(nodeUuid));
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> fetchMetadataBatch(Collection<String> nodeUuids) {
+    return await(fetchMetadataBatchAsync(nodeUuids));
+  }
+
+  @Override
+  public AlfrescoUser fetchUserAuthorities(String username) {
+    return await(fetchUserAuthoritiesAsync(username));
+  }
+
+  @Override
+  public List<AlfrescoUser> fetchAllUsersAuthorities() {
+    return await(execute(endpoint.allUsersAuthoritiesRequest(),
+        new ResponseHandler<List<AlfrescoUser>>() {
+          @Override
+          public List<AlfrescoUser> handleResponse(HttpResponse response) throws IOException {
+            return mapper.toUsers(response.getEntity().getContent());
+          }
+        }));
+  }
+
+  @Override
+  public List<AlfrescoUser> fetchUsersAuthorities(int skipCount, int maxItems) {
+    return await(fetchUsersAuthoritiesAsync(skipCount, maxItems));
+  }
+
+  @Override
+  public Iterator<AlfrescoUser> iterateAllUsersAuthorities(int pageSize) {
+    return new UsersAuthoritiesIterator(this, pageSize);
+  }
+
+  @Override
+  public AlfrescoUserChanges fetchUsersAuthoritiesChanges(long lastTransactionId, Long lastTransactionNodeId,
+                                                          int maxItems) {
+    return await(fetchUsersAuthoritiesChangesAsync(lastTransactionId, lastTransactionNodeId, maxItems));
+  }
+
+  @Override
+  public InputStream fetchContent(String contentUrlPath) {
+    return await(fetchContentAsync(contentUrlPath));
+  }
+
+  /**
+   * Sends the request and maps the (fully buffered) response on the I/O thread that received it;
+   * handlers are therefore expected to be quick.
+   */
+  private <T> ListenableFuture<T> execute(HttpUriRequest request, final ResponseHandler<T> handler) {
+    final SettableFuture<T> result = SettableFuture.create();
+    Future<HttpResponse> response = httpClient.execute(request, new FutureCallback<HttpResponse>() {
+      @Override
+      public void completed(HttpResponse response) {
+        try {
+          result.set(handler.handleResponse(response));
+        } catch (IOException e) {
+          result.setException(new AlfrescoDownException("Alfresco appears to be down", e));
+        } catch (RuntimeException e) {
+          result.setException(e);
+        }
+      }
+
+      @Override
+      public void failed(Exception e) {
+        logger.warn("Request to Alfresco failed.", e);
+        result.setException(new AlfrescoDownException("Alfresco appears to be down", e));
+      }
+
+      @Override
+      public void cancelled() {
+        result.cancel(false);
+      }
+    });
+    abortOnCancel(result, response);
+    return result;
+  }
+
+  private static void abortOnCancel(final ListenableFuture<?> result, final Future<?> request) {
+    result.addListener(new Runnable() {
+      @Override
+      public void run() {
+        if (result.isCancelled()) {
+          request.cancel(true);
+        }
+      }
+    }, MoreExecutors.sameThreadExecutor());
+  }
+
+  private static <T> T await(ListenableFuture<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new AlfrescoDownException("Interrupted while waiting for Alfresco", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new AlfrescoDownException("Alfresco appears to be down", cause);
+    }
+  }
+
+  private void discard(File file) {
+    if (!file.delete()) {
+      logger.debug("Unable to delete the spooled content {}", file);
+    }
+  }
+
+  /**
+   * A content spooled to a temporary file, which is deleted once the stream is closed.
+   */
+  private class SpooledContentStream extends FileInputStream {
+    private final File file;
+
+    SpooledContentStream(File file) throws IOException {
+      super(file);
+      this.file = file;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        discard(file);
+      }
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package org.alfresco.consulting.indexer.client;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+
+/**
+ * The position reached in the changes feed: the last transaction and ACL changeset returned and,
+ * when they have only been partially returned, the id of their last node returned.
+ *
+ * The string form is "lastTxnId[:lastTxnNodeId]|lastAclChangesetId[:lastAclNodeId]", which is
+ * compatible with the plain "lastTxnId|lastAclChangesetId" form.
+ */
+public class ChangesCursor {
+  public static final ChangesCursor START = new ChangesCursor(0, 0);
+
+  private static final String SEPARATOR = "|";
+  private static final String NODE_SEPARATOR = ":";
+
+  private final long lastTransactionId;
+  private final Long lastTransactionNodeId;
+  private final long lastAclChangesetId;
+  private final Long lastAclNodeId;
+
+  public ChangesCursor(long lastTransactionId, long lastAclChangesetId) {
+    this(lastTransactionId, null, lastAclChangesetId, null);
+  }
+
+  /**
+   * @param lastTransactionNodeId
+   *        the last node returned for lastTransactionId, or null if the transaction has been fully returned
+   * @param lastAclNodeId
+   *        the last node returned for lastAclChangesetId, or null if the ACL changeset has been fully returned
+   */
+  public ChangesCursor(long lastTransactionId, Long lastTransactionNodeId, long lastAclChangesetId,
+                       Long lastAclNodeId) {
+    this.lastTransactionId = lastTransactionId;
+    this.lastTransactionNodeId = lastTransactionNodeId;
+    this.lastAclChangesetId = lastAclChangesetId;
+    this.lastAclNodeId = lastAclNodeId;
+  }
+
+  public long getLastTransactionId() {
+    return lastTransactionId;
+  }
+
+  public Long getLastTransactionNodeId() {
+    return lastTransactionNodeId;
+  }
+
+  public long getLastAclChangesetId() {
+    return lastAclChangesetId;
+  }
+
+  public Long getLastAclNodeId() {
+    return lastAclNodeId;
+  }
+
+  /**
+   * @return the cursor encoded by {@link #toString()}, or {@link #START} if the value is empty
+   * @throws IllegalArgumentException
+   *         if the value is not a valid cursor
+   */
+  public static ChangesCursor valueOf(String value) {
+    if (Strings.isNullOrEmpty(value)) {
+      return START;
+    }
+    int separator = value.indexOf(SEPARATOR);
+    if (separator < 0 || separator != value.lastIndexOf(SEPARATOR)) {
+      throw new IllegalArgumentException("Invalid changes cursor: " + value);
+    }
+    try {
+      String transaction = value.substring(0, separator);
+      String acl = value.substring(separator + 1);
+      return new ChangesCursor(parseId(transaction), parseNodeId(transaction), parseId(acl), parseNodeId(acl));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid changes cursor: " + value, e);
+    }
+  }
+
+  private static long parseId(String position) {
+    int separator = position.indexOf(NODE_SEPARATOR);
+    return Long.parseLong(separator < 0 ? position : position.substring(0, separator));
+  }
+
+  private static Long parseNodeId(String position) {
+    int separator = position.indexOf(NODE_SEPARATOR);
+    return separator < 0 ? null : Long.valueOf(position.substring(separator + 1));
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append(lastTransactionId);
+    if (lastTransactionNodeId != null) {
+      builder.append(NODE_SEPARATOR).append(lastTransactionNodeId);
+    }
+    builder.append(SEPARATOR).append(lastAclChangesetId);
+    if (lastAclNodeId != null) {
+      builder.append(NODE_SEPARATOR).append(lastAclNodeId);
+    }
+    return builder.toString();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof ChangesCursor)) {
+      return false;
+    }
+    ChangesCursor that = (ChangesCursor) obj;
+    return lastTransactionId == that.lastTransactionId
+        && lastAclChangesetId == that.lastAclChangesetId
+        && Objects.equal(lastTransactionNodeId, that.lastTransactionNodeId)
+        && Objects.equal(lastAclNodeId, that.lastAclNodeId);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(lastTransactionId, lastTransactionNodeId, lastAclChangesetId, lastAclNodeId);
+  }
+}
@@ -0,0 +1,223 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Pull-parses the payload of the /node/changes webscript: documents are decoded one at a time, while
+ * they are iterated, so that memory usage does not depend on the page size.
+ *
+ * Cursor and store fields can be rendered either before or after the docs array; if one of them is
+ * requested before being read, the remaining documents are buffered in memory.
+ */
+class NodeChangesReader implements Iterator<Map<String, Object>>, Closeable {
+  static final String LAST_TXN_ID = "last_txn_id";
+  static final String LAST_ACL_CS_ID = "last_acl_changeset_id";
+  static final String LAST_TXN_NODE_ID = "last_txn_node_id";
+  static final String LAST_ACL_NODE_ID = "last_acl_node_id";
+  static final String STORE_ID = "store_id";
+  static final String STORE_PROTOCOL = "store_protocol";
+  static final String DOCS = "docs";
+
+  private final Logger logger = LoggerFactory.getLogger(NodeChangesReader.class);
+
+  private final Gson gson;
+  private final JsonReader jsonReader;
+  private final Closeable resource;
+  private final Map<String, String> fields = new HashMap<String, String>();
+  private final LinkedList<Map<String, Object>> buffer = new LinkedList<Map<String, Object>>();
+  private boolean docsFound;
+  private boolean inDocs;
+  private boolean closed;
+
+  NodeChangesReader(Gson gson, JsonReader jsonReader, Closeable resource) {
+    this.gson = gson;
+    this.jsonReader = jsonReader;
+    this.resource = resource;
+    try {
+      jsonReader.beginObject();
+      readFields();
+    } catch (IOException e) {
+      close();
+      throw new AlfrescoDownException("Alfresco appears to be down", e);
+    } catch (RuntimeException e) {
+      close();
+      throw asParseException(e);
+    }
+  }
+
+  long getLong(String name, long defaultValue) {
+    String value = getString(name);
+    if (Strings.isNullOrEmpty(value)) {
+      return defaultValue;
+    }
+    return Long.parseLong(value);
+  }
+
+  /**
+   * @return the value of an optional field, or null if it is missing from the response
+   */
+  Long getOptionalLong(String name) {
+    String value = getField(name);
+    if (Strings.isNullOrEmpty(value)) {
+      return null;
+    }
+    return Long.valueOf(value);
+  }
+
+  String getString(String name) {
+    String value = getField(name);
+    if (value == null) {
+      logger.warn("The key {} is missing from the response", name);
+      return "";
+    }
+    return value;
+  }
+
+  private String getField(String name) {
+    if (!fields.containsKey(name) && inDocs) {
+      logger.debug("The {} field follows the documents, buffering the remaining ones", name);
+      bufferRemainingDocuments();
+    }
+    return fields.get(name);
+  }
+
+  @Override
+  public boolean hasNext() {
+    return !buffer.isEmpty() || streamHasNext();
+  }
+
+  private boolean streamHasNext() {
+    if (!inDocs) {
+      return false;
+    }
+    try {
+      if (jsonReader.hasNext()) {
+        return true;
+      }
+      jsonReader.endArray();
+      inDocs = false;
+      readFields();
+      return false;
+    } catch (IOException e) {
+      close();
+      throw new AlfrescoDownException("Alfresco appears to be down", e);
+    } catch (RuntimeException e) {
+      close();
+      throw asParseException(e);
+    }
+  }
+
+  @Override
+  public Map<String, Object> next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Map<String, Object> document;
+    if (!buffer.isEmpty()) {
+      document = buffer.removeFirst();
+    } else {
+      document = readDocument();
+    }
+    document.put(STORE_ID, getString(STORE_ID));
+    document.put(STORE_PROTOCOL, getString(STORE_PROTOCOL));
+    return document;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      jsonReader.close();
+    } catch (IOException e) {
+      logger.debug("Failed to close the response stream.", e);
+    }
+    try {
+      resource.close();
+    } catch (IOException e) {
+      logger.debug("Failed to release the response.", e);
+    }
+  }
+
+  private void bufferRemainingDocuments() {
+    while (streamHasNext()) {
+      buffer.add(readDocument());
+    }
+  }
+
+  private void readFields() throws IOException {
+    while (jsonReader.hasNext()) {
+      String name = jsonReader.nextName();
+      if (DOCS.equals(name) && jsonReader.peek() == JsonToken.BEGIN_ARRAY) {
+        jsonReader.beginArray();
+        docsFound = true;
+        inDocs = true;
+        return;
+      }
+      JsonToken token = jsonReader.peek();
+      if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+        fields.put(name, jsonReader.nextString());
+      } else if (token == JsonToken.BOOLEAN) {
+        fields.put(name, String.valueOf(jsonReader.nextBoolean()));
+      } else {
+        logger.warn("The {} property (={}) is not a string in the response", name, token);
+        jsonReader.skipValue();
+      }
+    }
+    jsonReader.endObject();
+    if (!docsFound) {
+      logger.warn("No documents found in response!");
+    }
+    close();
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> readDocument() {
+    try {
+      if (jsonReader.peek() == JsonToken.BEGIN_OBJECT) {
+        return (Map<String, Object>) gson.fromJson(jsonReader, Map.class);
+      }
+      jsonReader.skipValue();
+      return new HashMap<String, Object>();
+    } catch (IOException e) {
+      close();
+      throw new AlfrescoDownException("Alfresco appears to be down", e);
+    } catch (RuntimeException e) {
+      close();
+      throw asParseException(e);
+    }
+  }
+
+  private RuntimeException asParseException(RuntimeException e) {
+    if (e instanceof AlfrescoDownException || e instanceof AlfrescoParseException) {
+      return e;
+    }
+    if (e instanceof JsonParseException || e instanceof IllegalStateException
+        || e instanceof NumberFormatException) {
+      return new AlfrescoParseException("Unable to parse the node changes response", e);
+    }
+    return e;
+  }
+}
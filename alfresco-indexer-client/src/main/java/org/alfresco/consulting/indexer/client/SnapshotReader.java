@@ -0,0 +1,156 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Pull-parses the NDJSON payload of the /node/snapshot webscript: each line is decoded while the
+ * documents are iterated, so that memory usage does not depend on the page size.
+ *
+ * The last line holds the paging fields instead of a node; if one of them is requested before the
+ * documents have all been read, the remaining documents are buffered in memory. A payload missing
+ * that line has been truncated, and is reported as such.
+ */
+class SnapshotReader implements Iterator<Map<String, Object>>, Closeable {
+  static final String LAST_TXN_ID = "last_txn_id";
+  static final String LAST_ACL_CS_ID = "last_acl_changeset_id";
+  static final String LAST_NODE_ID = "last_node_id";
+  static final String MAX_NODE_ID = "max_node_id";
+  private static final String UUID = "uuid";
+
+  private final Logger logger = LoggerFactory.getLogger(SnapshotReader.class);
+
+  private final Gson gson;
+  private final BufferedReader reader;
+  private final Closeable resource;
+  private final LinkedList<Map<String, Object>> buffer = new LinkedList<Map<String, Object>>();
+  private Map<String, Object> next;
+  private Map<String, Object> fields;
+  private boolean closed;
+
+  SnapshotReader(Gson gson, BufferedReader reader, Closeable resource) {
+    this.gson = gson;
+    this.reader = reader;
+    this.resource = resource;
+  }
+
+  long getLong(String name) {
+    String value = getField(name);
+    if (Strings.isNullOrEmpty(value)) {
+      throw new AlfrescoParseException("The key " + name + " is missing from the snapshot response");
+    }
+    return Long.parseLong(value);
+  }
+
+  /**
+   * @return the value of an optional field, or null if it is missing from the response
+   */
+  Long getOptionalLong(String name) {
+    String value = getField(name);
+    return Strings.isNullOrEmpty(value) ? null : Long.valueOf(value);
+  }
+
+  private String getField(String name) {
+    if (fields == null) {
+      logger.debug("The {} field follows the documents, buffering the remaining ones", name);
+      while (streamHasNext()) {
+        buffer.add(next);
+        next = null;
+      }
+    }
+    Object value = fields.get(name);
+    return value == null ? null : value.toString();
+  }
+
+  @Override
+  public boolean hasNext() {
+    return !buffer.isEmpty() || streamHasNext();
+  }
+
+  private boolean streamHasNext() {
+    if (next != null) {
+      return true;
+    }
+    if (fields != null) {
+      return false;
+    }
+    try {
+      String line;
+      do {
+        line = reader.readLine();
+        if (line == null) {
+          close();
+          throw new AlfrescoParseException("The snapshot response is truncated, its paging line is missing");
+        }
+      } while (line.trim().isEmpty());
+      @SuppressWarnings("unchecked")
+      Map<String, Object> object = (Map<String, Object>) gson.fromJson(line, Map.class);
+      if (object.containsKey(UUID)) {
+        next = object;
+        return true;
+      }
+      fields = object;
+      close();
+      return false;
+    } catch (IOException e) {
+      close();
+      throw new AlfrescoDownException("Alfresco appears to be down", e);
+    } catch (JsonParseException e) {
+      close();
+      throw new AlfrescoParseException("Unable to parse the snapshot response", e);
+    }
+  }
+
+  @Override
+  public Map<String, Object> next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    if (!buffer.isEmpty()) {
+      return buffer.removeFirst();
+    }
+    Map<String, Object> document = next;
+    next = null;
+    return document;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (fields == null) {
+      // Not fully read: paging fields are not available anymore
+      fields = new HashMap<String, Object>();
+    }
+    try {
+      reader.close();
+    } catch (IOException e) {
+      logger.debug("Failed to close the response stream.", e);
+    }
+    try {
+      resource.close();
+    } catch (IOException e) {
+      logger.debug("Failed to release the response.", e);
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Iterates over the authorities of all users, fetching the next page of users only once the previous
+ * one has been consumed; a page holding less users than the page size is the last one.
+ */
+class UsersAuthoritiesIterator extends AbstractIterator<AlfrescoUser> {
+  private final AlfrescoClient alfrescoClient;
+  private final int pageSize;
+  private int skipCount;
+  private Iterator<AlfrescoUser> page;
+  private boolean lastPage;
+
+  UsersAuthoritiesIterator(AlfrescoClient alfrescoClient, int pageSize) {
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("Invalid page size: " + pageSize);
+    }
+    this.alfrescoClient = alfrescoClient;
+    this.pageSize = pageSize;
+  }
+
+  @Override
+  protected AlfrescoUser computeNext() {
+    while (page == null || !page.hasNext()) {
+      if (lastPage) {
+        return endOfData();
+      }
+      List<AlfrescoUser> users = alfrescoClient.fetchUsersAuthorities(skipCount, pageSize);
+      skipCount += users.size();
+      lastPage = users.size() < pageSize;
+      page = users.iterator();
+    }
+    return page.next();
+  }
+}
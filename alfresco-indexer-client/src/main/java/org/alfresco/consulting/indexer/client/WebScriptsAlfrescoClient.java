@@ -2,50 +2,42 @@ package org.alfresco.consulting.indexer.client;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.base.Strings;
-import com.google.common.io.CharStreams;
-import com.google.common.net.MediaType;
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonPrimitive;
-
 public class WebScriptsAlfrescoClient implements AlfrescoClient {
-  private static final String LAST_TXN_ID = "last_txn_id";
-  private static final String DOCS = "docs";
-  private static final String LAST_ACL_CS_ID = "last_acl_changeset_id";
-  private static final String URL_PARAM_LAST_TXN_ID = "lastTxnId";
-  private static final String URL_PARAM_LAST_ACL_CS_ID = "lastAclChangesetId";
-  private static final String STORE_ID = "store_id";
-  private static final String STORE_PROTOCOL = "store_protocol";
-  private static final String USERNAME = "username";
-  private static final String AUTHORITIES = "authorities";
-  private final Gson gson = new Gson();
-  private final String changesUrl;
-  private final String metadataUrl;
-  private final String authoritiesUrl;
-  private final String username;
-  private final String password;
+  public static final int DEFAULT_MAX_CONNECTIONS = 10;
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+  static final long KEEP_ALIVE_MILLIS = 30000L;
+  private static final long IDLE_CONNECTION_TIMEOUT_MILLIS = 30000L;
+  private static final long IDLE_CONNECTION_EVICTION_INTERVAL_MILLIS = 5000L;
+  static final int CONNECTION_REQUEST_TIMEOUT_MILLIS = 60000;
+
+  private final WebScriptsEndpoint endpoint;
+  private final WebScriptsJsonMapper mapper = new WebScriptsJsonMapper();
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final CloseableHttpClient httpClient;
+  private final IdleConnectionEvictor idleConnectionEvictor;
 
   private final Logger logger = LoggerFactory.getLogger(WebScriptsAlfrescoClient.class);
 
@@ -57,214 +49,168 @@ public class WebScriptsAlfrescoClient implements AlfrescoClient {
   public WebScriptsAlfrescoClient(String protocol, String hostname,
                                   String endpoint, String storeProtocol, String storeId, String username,
                                   String password) {
-    changesUrl = String.format("%s://%s%s/node/changes/%s/%s", protocol, hostname, endpoint, storeProtocol, storeId);
-    metadataUrl = String.format("%s://%s%s/node/details/%s/%s", protocol, hostname, endpoint, storeProtocol, storeId);
-    authoritiesUrl = String.format("%s://%s%s/api/node/auth/resolve/", protocol, hostname, endpoint);
-    this.username = username;
-    this.password = password;
+    this(protocol, hostname, endpoint, storeProtocol, storeId, username, password,
+        DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
   }
 
-  @Override
-  public AlfrescoResponse fetchNodes(long lastTransactionId,
-                                     long lastAclChangesetId) {
-    HttpResponse response;
-    try {
-      CloseableHttpClient httpClient = HttpClients.createDefault();
-      String urlWithParameter = String.format("%s?%s", changesUrl, urlParameters(lastTransactionId, lastAclChangesetId));
+  /**
+   * @param maxConnections
+   *        the maximum number of pooled connections, across all routes
+   * @param maxConnectionsPerRoute
+   *        the maximum number of pooled connections towards a single Alfresco host
+   */
+  public WebScriptsAlfrescoClient(String protocol, String hostname,
+                                  String endpoint, String storeProtocol, String storeId, String username,
+                                  String password, int maxConnections, int maxConnectionsPerRoute) {
+    this.endpoint = new WebScriptsEndpoint(protocol, hostname, endpoint, storeProtocol, storeId,
+        username, password);
+
+    connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+    httpClient = HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setKeepAliveStrategy(new DefaultKeepAliveStrategy(KEEP_ALIVE_MILLIS))
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT_MILLIS)
+            .build())
+        .build();
+    idleConnectionEvictor = new IdleConnectionEvictor(connectionManager);
+    idleConnectionEvictor.start();
+  }
 
-      logger.debug("Hitting url: {}", urlWithParameter);
+  /**
+   * Restricts the changes feed and the snapshot to one shard of the nodes (and ACLs) of the store, so
+   * that several clients, each with its own cursor, can share the changes of the store
+   *
+   * @param shardIndex
+   *        the index of the shard, from 0 to shardCount - 1
+   * @param shardCount
+   *        the number of shards; 1 (the default) for the whole store
+   */
+  public void setShard(int shardIndex, int shardCount) {
+    endpoint.setShard(shardIndex, shardCount);
+  }
 
-      HttpGet httpGet = createGetRequest(urlWithParameter);
-      response = httpClient.execute(httpGet);
-      HttpEntity entity = response.getEntity();
-      AlfrescoResponse afResponse = fromHttpEntity(entity);
-      EntityUtils.consume(entity);
-      return afResponse;
+  @Override
+  public void close() {
+    idleConnectionEvictor.shutdown();
+    try {
+      httpClient.close();
     } catch (IOException e) {
-      logger.warn("Failed to fetch nodes.", e);
-      throw new AlfrescoDownException("Alfresco appears to be down", e);
+      logger.warn("Failed to close the HTTP client.", e);
     }
   }
 
-  private HttpGet createGetRequest(String url) {
-    HttpGet httpGet = new HttpGet(url);
-    httpGet.addHeader("Accept", "application/json");
-    if (useBasicAuthentication()) {
-      httpGet.addHeader("Authorization", "Basic " + Base64.encodeBase64String(String.format("%s:%s", username, password).getBytes(Charset.forName("UTF-8"))));
-    }
-    return httpGet;
+  @Override
+  public AlfrescoResponse fetchNodes(long lastTransactionId,
+                                     long lastAclChangesetId) {
+    return fetchNodes(endpoint.changesRequest(lastTransactionId, lastAclChangesetId));
   }
 
-  private boolean useBasicAuthentication() {
-    return username != null && !"".equals(username) && password != null;
+  @Override
+  public AlfrescoResponse fetchNodes(long lastTransactionId, long lastAclChangesetId,
+                                     int maxTransactions, int maxAclChangesets) {
+    return fetchNodes(endpoint.changesRequest(lastTransactionId, lastAclChangesetId, maxTransactions,
+        maxAclChangesets));
   }
 
-  private String urlParameters(long lastTransactionId, long lastAclChangesetId) {
-    // TODO: URL encode
-    return String.format("%s=%d&%s=%d", URL_PARAM_LAST_TXN_ID, lastTransactionId, URL_PARAM_LAST_ACL_CS_ID, lastAclChangesetId);
+  @Override
+  public AlfrescoResponse fetchNodes(ChangesCursor cursor, int maxTransactions, int maxAclChangesets) {
+    return fetchNodes(endpoint.changesRequest(cursor, maxTransactions, maxAclChangesets));
   }
 
-  private AlfrescoResponse fromHttpEntity(HttpEntity entity) throws IOException {
-    Reader entityReader = new InputStreamReader(entity.getContent());
-    JsonObject responseObject = gson.fromJson(entityReader, JsonObject.class);
-    ArrayList<Map<String, Object>> documents = new ArrayList<Map<String, Object>>();
-
-    long lastTransactionId = getStringAsLong(responseObject, LAST_TXN_ID, 0L);
-    long lastAclChangesetId = getStringAsLong(responseObject, LAST_ACL_CS_ID, 0L);
-    String storeId = getString(responseObject, STORE_ID);
-    String storeProtocol = getString(responseObject, STORE_PROTOCOL);
-
-    if (responseObject.has(DOCS) && responseObject.get(DOCS).isJsonArray()) {
-      JsonArray docsArray = responseObject.get(DOCS).getAsJsonArray();
-      for (JsonElement documentElement : docsArray) {
-        Map<String, Object> document = createDocument(documentElement);
-        document.put(STORE_ID, storeId);
-        document.put(STORE_PROTOCOL, storeProtocol);
-        documents.add(document);
-      }
-    } else {
-      logger.warn("No documents found in response!");
+  private AlfrescoResponse fetchNodes(HttpGet httpGet) {
+    CloseableHttpResponse response = null;
+    try {
+      response = httpClient.execute(httpGet);
+      AlfrescoResponse afResponse = mapper.toNodeChanges(response.getEntity().getContent(), response);
+      // The response is now owned by the streamed AlfrescoResponse
+      response = null;
+      return afResponse;
+    } catch (IOException e) {
+      logger.warn("Failed to fetch nodes.", e);
+      throw new AlfrescoDownException("Alfresco appears to be down", e);
+    } finally {
+      closeQuietly(response);
     }
-
-    return new AlfrescoResponse(lastTransactionId, lastAclChangesetId, storeId, storeProtocol, documents);
   }
 
-  private long getStringAsLong(JsonObject responseObject, String key, long defaultValue) {
-    String string = getString(responseObject, key);
-    if (Strings.isNullOrEmpty(string)) {
-      return defaultValue;
-    }
-    return Long.parseLong(string);
+  @Override
+  public AlfrescoSnapshot fetchSnapshot(long lastNodeId, int maxNodes) {
+    return fetchSnapshot(lastNodeId, null, maxNodes);
   }
 
-  private String getString(JsonObject responseObject, String key) {
-    if (responseObject.has(key)) {
-      JsonElement element = responseObject.get(key);
-      if (element.isJsonPrimitive() && element.getAsJsonPrimitive().isString()) {
-        return element.getAsString();
-      } else {
-        logger.warn("The {} property (={}) is not a string in document: {}", new Object[]{key, element, responseObject});
-      }
-    } else {
-      logger.warn("The key {} is missing from document: {}", key, responseObject);
+  @Override
+  public AlfrescoSnapshot fetchSnapshot(long lastNodeId, Long toNodeId, int maxNodes) {
+    CloseableHttpResponse response = null;
+    try {
+      response = httpClient.execute(endpoint.snapshotRequest(lastNodeId, toNodeId, maxNodes));
+      AlfrescoSnapshot snapshot = mapper.toSnapshot(response.getEntity().getContent(), response);
+      // The response is now owned by the streamed AlfrescoSnapshot
+      response = null;
+      return snapshot;
+    } catch (IOException e) {
+      logger.warn("Failed to fetch the snapshot.", e);
+      throw new AlfrescoDownException("Alfresco appears to be down", e);
+    } finally {
+      closeQuietly(response);
     }
-    return "";
   }
 
-  @SuppressWarnings("unchecked")
-  private Map<String, Object> createDocument(JsonElement documentElement) {
-    if (documentElement.isJsonObject()) {
-      JsonObject documentObject = documentElement.getAsJsonObject();
-      return (Map<String, Object>) gson.fromJson(documentObject, Map.class);
+  private void closeQuietly(CloseableHttpResponse response) {
+    if (response != null) {
+      try {
+        response.close();
+      } catch (IOException e) {
+        logger.debug("Failed to release the HTTP connection.", e);
+      }
     }
-    return new HashMap<String, Object>();
   }
 
   @Override
   public Map<String, Object> fetchMetadata(String nodeUuid)
           throws AlfrescoDownException {
-    String json = fetchMetadataJson(nodeUuid);
-
-    @SuppressWarnings("unchecked")
-    Map<String, Object> map = gson.fromJson(json, Map.class);
-
-    List<Map<String, String>> properties = extractPropertiesFieldFromMap(map,
-            "properties");
-
-    for (Map<String, String> e : properties) {
-      map.put(e.get("name"), e.get("value"));
-    }
-    return map;
-  }
-
-  private String fetchMetadataJson(String nodeUuid) {
-    String fullUrl = String.format("%s/%s", metadataUrl, nodeUuid);
-    logger.debug("url: {}", fullUrl);
+    CloseableHttpResponse response = null;
     try {
-      CloseableHttpClient httpClient = HttpClients.createDefault();
-      HttpGet httpGet = createGetRequest(fullUrl);
-      CloseableHttpResponse response = httpClient.execute(httpGet);
-      HttpEntity entity = response.getEntity();
-      return CharStreams.toString(new InputStreamReader(entity.getContent(),
-              "UTF-8"));
+      HttpGet httpGet = endpoint.metadataRequest(nodeUuid);
+      response = httpClient.execute(httpGet);
+      return mapper.toMetadata(response.getEntity().getContent());
     } catch (IOException e) {
       throw new AlfrescoDownException(e);
+    } finally {
+      closeQuietly(response);
     }
   }
 
-  @SuppressWarnings("unchecked")
-  private List<Map<String, String>> extractPropertiesFieldFromMap(
-          Map<String, Object> map, String propertiesField) {
-    Object properties = map.remove(propertiesField);
-    if (!(properties instanceof List)) {
-      throw new AlfrescoDownException(propertiesField
-              + " is not of type List, it is of type " + properties.getClass());
-    }
-    return (List<Map<String, String>>) properties;
-  }
-
-  private AlfrescoUser userFromHttpEntity(HttpEntity entity) throws IOException {
-    Reader entityReader = new InputStreamReader(entity.getContent());
-    JsonObject responseObject = gson.fromJson(entityReader, JsonObject.class);
-    return getUser(responseObject);
-  }
-
-  private AlfrescoUser getUser(JsonObject responseObject) {
-    String username = getUsername(responseObject);
-    List<String> authorities = getAuthorities(responseObject);
-    return new AlfrescoUser(username, authorities);
-  }
-
-  private String getUsername(JsonObject userObject) {
-    if (!userObject.has(USERNAME)) {
-      throw new AlfrescoParseException("Json response is missing username.");
-    }
-    JsonElement usernameElement = userObject.get(USERNAME);
-    if (!usernameElement.isJsonPrimitive() || !usernameElement.getAsJsonPrimitive().isString()) {
-      throw new AlfrescoParseException("Username must be a string. It was: " + usernameElement.toString());
-    }
-    return usernameElement.getAsString();
-  }
-
-  private List<String> getAuthorities(JsonObject userObject) {
-    List<String> authorities = new ArrayList<String>();
-    if (!userObject.has(AUTHORITIES)) {
-      throw new AlfrescoParseException("Json response is authorities.");
-    }
-    JsonElement authoritiesElement = userObject.get(AUTHORITIES);
-    if (!authoritiesElement.isJsonArray()) {
-      throw new AlfrescoParseException("Authorities must be a json array. It was: " + authoritiesElement.toString());
+  @Override
+  public Map<String, Map<String, Object>> fetchMetadataBatch(Collection<String> nodeUuids)
+          throws AlfrescoDownException {
+    if (nodeUuids.isEmpty()) {
+      return new HashMap<String, Map<String, Object>>();
     }
-    JsonArray authoritiesArray = authoritiesElement.getAsJsonArray();
-    for (JsonElement authorityElement : authoritiesArray) {
-      if (!authorityElement.isJsonPrimitive()) {
-        throw new AlfrescoParseException("Authority entry must be a string. It was: " + authoritiesElement.toString());
-      }
-      JsonPrimitive authorityPrimitive = authorityElement.getAsJsonPrimitive();
-      if (!authorityPrimitive.isString()) {
-        throw new AlfrescoParseException("Authority entry must be a string. It was: " + authoritiesElement.toString());
-      }
-      authorities.add(authorityPrimitive.getAsString());
+    CloseableHttpResponse response = null;
+    try {
+      HttpPost httpPost = endpoint.metadataBatchRequest(mapper.toMetadataBatchRequest(nodeUuids),
+          nodeUuids.size());
+      response = httpClient.execute(httpPost);
+      return mapper.toMetadataBatch(response.getEntity().getContent());
+    } catch (IOException e) {
+      throw new AlfrescoDownException(e);
+    } finally {
+      closeQuietly(response);
     }
-    return authorities;
   }
 
   @Override
   public AlfrescoUser fetchUserAuthorities(String username)
           throws AlfrescoDownException {
-    HttpResponse response;
+    CloseableHttpResponse response = null;
     try {
-      CloseableHttpClient httpClient = HttpClients.createDefault();
-      String url = String.format("%s%s", authoritiesUrl, username);
-
-      if (logger.isDebugEnabled()) {
-        logger.debug("Hitting url: " + url);
-      }
-
-      HttpGet httpGet = createGetRequest(url);
+      HttpGet httpGet = endpoint.userAuthoritiesRequest(username);
       response = httpClient.execute(httpGet);
       HttpEntity entity = response.getEntity();
-      AlfrescoUser afResponse = userFromHttpEntity(entity);
+      AlfrescoUser afResponse = mapper.toUser(entity.getContent());
       EntityUtils.consume(entity);
       return afResponse;
     } catch (IOException e) {
@@ -272,24 +218,20 @@ public class WebScriptsAlfrescoClient implements AlfrescoClient {
         logger.warn("Failed to fetch nodes.", e);
       }
       throw new AlfrescoDownException("Alfresco appears to be down", e);
+    } finally {
+      closeQuietly(response);
     }
   }
 
   @Override
   public List<AlfrescoUser> fetchAllUsersAuthorities()
           throws AlfrescoDownException {
-    HttpResponse response;
+    CloseableHttpResponse response = null;
     try {
-      CloseableHttpClient httpClient = HttpClients.createDefault();
-
-      if (logger.isDebugEnabled()) {
-        logger.debug("Hitting url: " + authoritiesUrl);
-      }
-
-      HttpGet httpGet = createGetRequest(authoritiesUrl);
+      HttpGet httpGet = endpoint.allUsersAuthoritiesRequest();
       response = httpClient.execute(httpGet);
       HttpEntity entity = response.getEntity();
-      List<AlfrescoUser> users = usersFromHttpEntity(entity);
+      List<AlfrescoUser> users = mapper.toUsers(entity.getContent());
       EntityUtils.consume(entity);
       return users;
     } catch (IOException e) {
@@ -297,41 +239,117 @@ public class WebScriptsAlfrescoClient implements AlfrescoClient {
         logger.warn("Failed to fetch nodes.", e);
       }
       throw new AlfrescoDownException("Alfresco appears to be down", e);
+    } finally {
+      closeQuietly(response);
     }
   }
 
-  private List<AlfrescoUser> usersFromHttpEntity(HttpEntity entity) throws IOException {
-    Reader entityReader = new InputStreamReader(entity.getContent());
-    JsonElement responseObject = gson.fromJson(entityReader, JsonElement.class);
-    if (!responseObject.isJsonArray()) {
-      throw new AlfrescoParseException("Users must be a json array.");
+  @Override
+  public List<AlfrescoUser> fetchUsersAuthorities(int skipCount, int maxItems)
+          throws AlfrescoDownException {
+    CloseableHttpResponse response = null;
+    try {
+      HttpGet httpGet = endpoint.usersAuthoritiesRequest(skipCount, maxItems);
+      response = httpClient.execute(httpGet);
+      HttpEntity entity = response.getEntity();
+      List<AlfrescoUser> users = mapper.toUsers(entity.getContent());
+      EntityUtils.consume(entity);
+      return users;
+    } catch (IOException e) {
+      throw new AlfrescoDownException("Alfresco appears to be down", e);
+    } finally {
+      closeQuietly(response);
     }
-    List<AlfrescoUser> users = new ArrayList<AlfrescoUser>();
-    JsonArray usersArray = responseObject.getAsJsonArray();
-    for (JsonElement userElement : usersArray) {
-      if (!userElement.isJsonObject()) {
-        throw new AlfrescoParseException("User must be a json object.");
-      }
-      AlfrescoUser user = getUser(userElement.getAsJsonObject());
-      users.add(user);
+  }
+
+  @Override
+  public Iterator<AlfrescoUser> iterateAllUsersAuthorities(int pageSize) {
+    return new UsersAuthoritiesIterator(this, pageSize);
+  }
+
+  @Override
+  public AlfrescoUserChanges fetchUsersAuthoritiesChanges(long lastTransactionId, Long lastTransactionNodeId,
+                                                          int maxItems) throws AlfrescoDownException {
+    CloseableHttpResponse response = null;
+    try {
+      HttpGet httpGet = endpoint.usersAuthoritiesChangesRequest(lastTransactionId, lastTransactionNodeId, maxItems);
+      response = httpClient.execute(httpGet);
+      HttpEntity entity = response.getEntity();
+      AlfrescoUserChanges changes = mapper.toUserChanges(entity.getContent());
+      EntityUtils.consume(entity);
+      return changes;
+    } catch (IOException e) {
+      throw new AlfrescoDownException("Alfresco appears to be down", e);
+    } finally {
+      closeQuietly(response);
     }
-    return users;
   }
 
   @Override
   public InputStream fetchContent(String contentUrlPath) {
-	  HttpGet httpGet = new HttpGet(contentUrlPath);
-	  httpGet.addHeader("Accept", MediaType.APPLICATION_BINARY.toString());
-	  if (useBasicAuthentication()) {
-		  httpGet.addHeader("Authorization", "Basic " + Base64.encodeBase64String(String.format("%s:%s", username, password).getBytes(Charset.forName("UTF-8"))));
-	  }
+	  HttpGet httpGet = endpoint.contentRequest(contentUrlPath);
 
-	  CloseableHttpClient httpClient = HttpClients.createDefault();
 	  try {
+		// The pooled connection is released once the caller closes the returned stream
 		HttpResponse response = httpClient.execute(httpGet);
 		return response.getEntity().getContent();
 	} catch (Exception e) {
 		throw new AlfrescoDownException("Alfresco appears to be down", e);
 	}
   }
+
+  /**
+   * Keeps connections alive for the duration advertised by the server, or for a default duration
+   * when the server does not send any Keep-Alive header.
+   */
+  static class DefaultKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+    private final long defaultKeepAliveMillis;
+
+    DefaultKeepAliveStrategy(long defaultKeepAliveMillis) {
+      this.defaultKeepAliveMillis = defaultKeepAliveMillis;
+    }
+
+    @Override
+    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+      long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+      return keepAlive > 0 ? keepAlive : defaultKeepAliveMillis;
+    }
+  }
+
+  /**
+   * Periodically closes expired and idle pooled connections, so that sockets closed by
+   * Alfresco (or by any proxy in between) do not pile up in the pool.
+   */
+  private static class IdleConnectionEvictor extends Thread {
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private volatile boolean shutdown;
+
+    IdleConnectionEvictor(PoolingHttpClientConnectionManager connectionManager) {
+      super("alfresco-idle-connection-evictor");
+      this.connectionManager = connectionManager;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!shutdown) {
+          synchronized (this) {
+            wait(IDLE_CONNECTION_EVICTION_INTERVAL_MILLIS);
+          }
+          connectionManager.closeExpiredConnections();
+          connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+      } catch (InterruptedException e) {
+        // Terminating
+      }
+    }
+
+    void shutdown() {
+      shutdown = true;
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+  }
 }
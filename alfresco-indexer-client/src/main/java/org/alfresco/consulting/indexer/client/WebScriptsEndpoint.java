@@ -0,0 +1,215 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.nio.charset.Charset;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.net.MediaType;
+
+/**
+ * Builds the HTTP requests towards the indexer webscripts; requests are not bound to any HTTP
+ * client, so that they can be executed by both the blocking and the non-blocking clients.
+ */
+class WebScriptsEndpoint {
+  private static final String URL_PARAM_LAST_TXN_ID = "lastTxnId";
+  private static final String URL_PARAM_LAST_ACL_CS_ID = "lastAclChangesetId";
+  private static final String URL_PARAM_LAST_TXN_NODE_ID = "lastTxnNodeId";
+  private static final String URL_PARAM_LAST_ACL_NODE_ID = "lastAclNodeId";
+  private static final String URL_PARAM_MAX_TXNS = "maxTxns";
+  private static final String URL_PARAM_MAX_ACL_CS = "maxAclChangesets";
+  private static final String URL_PARAM_LAST_NODE_ID = "lastNodeId";
+  private static final String URL_PARAM_TO_NODE_ID = "toNodeId";
+  private static final String URL_PARAM_MAX_NODES = "maxNodes";
+  private static final String URL_PARAM_SHARD = "shard";
+  private static final String URL_PARAM_SKIP_COUNT = "skipCount";
+  private static final String URL_PARAM_MAX_ITEMS = "maxItems";
+
+  private final Logger logger = LoggerFactory.getLogger(WebScriptsEndpoint.class);
+
+  private final String changesUrl;
+  private final String metadataUrl;
+  private final String snapshotUrl;
+  private final String authoritiesUrl;
+  private final String username;
+  private final String password;
+  private String shard;
+
+  WebScriptsEndpoint(String protocol, String hostname, String endpoint, String storeProtocol,
+                     String storeId, String username, String password) {
+    changesUrl = String.format("%s://%s%s/node/changes/%s/%s", protocol, hostname, endpoint, storeProtocol, storeId);
+    metadataUrl = String.format("%s://%s%s/node/details/%s/%s", protocol, hostname, endpoint, storeProtocol, storeId);
+    snapshotUrl = String.format("%s://%s%s/node/snapshot/%s/%s", protocol, hostname, endpoint, storeProtocol, storeId);
+    authoritiesUrl = String.format("%s://%s%s/api/node/auth/resolve/", protocol, hostname, endpoint);
+    this.username = username;
+    this.password = password;
+  }
+
+  /**
+   * Restricts the changes (and the snapshot) to the nodes and ACLs of one shard of the store
+   *
+   * @param shardIndex
+   *        the index of the shard, from 0 to shardCount - 1
+   * @param shardCount
+   *        the number of shards; 1 to return all the nodes and ACLs
+   */
+  void setShard(int shardIndex, int shardCount) {
+    if (shardCount <= 0 || shardIndex < 0 || shardIndex >= shardCount) {
+      throw new IllegalArgumentException("Invalid shard " + shardIndex + "/" + shardCount);
+    }
+    this.shard = (shardCount > 1 ? shardIndex + "/" + shardCount : null);
+  }
+
+  HttpGet changesRequest(long lastTransactionId, long lastAclChangesetId) {
+    String urlWithParameter = String.format("%s?%s%s", changesUrl, urlParameters(lastTransactionId, lastAclChangesetId),
+        shardParameter());
+    logger.debug("Hitting url: {}", urlWithParameter);
+    return createGetRequest(urlWithParameter);
+  }
+
+  HttpGet changesRequest(long lastTransactionId, long lastAclChangesetId, int maxTransactions,
+                         int maxAclChangesets) {
+    String urlWithParameter = String.format("%s?%s&%s=%d&%s=%d%s", changesUrl,
+        urlParameters(lastTransactionId, lastAclChangesetId), URL_PARAM_MAX_TXNS, maxTransactions,
+        URL_PARAM_MAX_ACL_CS, maxAclChangesets, shardParameter());
+    logger.debug("Hitting url: {}", urlWithParameter);
+    return createGetRequest(urlWithParameter);
+  }
+
+  /**
+   * @param maxTransactions
+   *        the maximum number of transaction nodes; not sent if 0, sent as 0 (no transaction node) if negative
+   * @param maxAclChangesets
+   *        the maximum number of ACL changeset nodes; not sent if 0, sent as 0 (no ACL changeset node) if negative
+   */
+  HttpGet changesRequest(ChangesCursor cursor, int maxTransactions, int maxAclChangesets) {
+    StringBuilder url = new StringBuilder(changesUrl).append('?')
+        .append(urlParameters(cursor.getLastTransactionId(), cursor.getLastAclChangesetId()));
+    appendParameter(url, URL_PARAM_LAST_TXN_NODE_ID, cursor.getLastTransactionNodeId());
+    appendParameter(url, URL_PARAM_LAST_ACL_NODE_ID, cursor.getLastAclNodeId());
+    if (maxTransactions != 0) {
+      appendParameter(url, URL_PARAM_MAX_TXNS, Math.max(0, maxTransactions));
+    }
+    if (maxAclChangesets != 0) {
+      appendParameter(url, URL_PARAM_MAX_ACL_CS, Math.max(0, maxAclChangesets));
+    }
+    url.append(shardParameter());
+    logger.debug("Hitting url: {}", url);
+    return createGetRequest(url.toString());
+  }
+
+  HttpGet metadataRequest(String nodeUuid) {
+    String fullUrl = String.format("%s/%s", metadataUrl, nodeUuid);
+    logger.debug("url: {}", fullUrl);
+    return createGetRequest(fullUrl);
+  }
+
+  HttpPost metadataBatchRequest(String json, int size) {
+    logger.debug("url: {} ({} nodes)", metadataUrl, size);
+    return createPostRequest(metadataUrl, json);
+  }
+
+  /**
+   * @param toNodeId
+   *        the last node id of the range; not sent if null
+   * @param maxNodes
+   *        the maximum number of nodes; not sent if 0
+   */
+  HttpGet snapshotRequest(long lastNodeId, Long toNodeId, int maxNodes) {
+    StringBuilder url = new StringBuilder(snapshotUrl).append('?')
+        .append(URL_PARAM_LAST_NODE_ID).append('=').append(lastNodeId);
+    appendParameter(url, URL_PARAM_TO_NODE_ID, toNodeId);
+    if (maxNodes > 0) {
+      appendParameter(url, URL_PARAM_MAX_NODES, maxNodes);
+    }
+    url.append(shardParameter());
+    logger.debug("Hitting url: {}", url);
+    return createGetRequest(url.toString());
+  }
+
+  HttpGet userAuthoritiesRequest(String username) {
+    String url = String.format("%s%s", authoritiesUrl, username);
+    logger.debug("Hitting url: {}", url);
+    return createGetRequest(url);
+  }
+
+  HttpGet allUsersAuthoritiesRequest() {
+    logger.debug("Hitting url: {}", authoritiesUrl);
+    return createGetRequest(authoritiesUrl);
+  }
+
+  /**
+   * @param maxItems
+   *        the maximum number of changed persons and groups; not sent if 0
+   */
+  HttpGet usersAuthoritiesChangesRequest(long lastTransactionId, Long lastTransactionNodeId, int maxItems) {
+    StringBuilder url = new StringBuilder(authoritiesUrl).append('?')
+        .append(URL_PARAM_LAST_TXN_ID).append('=').append(lastTransactionId);
+    appendParameter(url, URL_PARAM_LAST_TXN_NODE_ID, lastTransactionNodeId);
+    if (maxItems > 0) {
+      appendParameter(url, URL_PARAM_MAX_ITEMS, maxItems);
+    }
+    logger.debug("Hitting url: {}", url);
+    return createGetRequest(url.toString());
+  }
+
+  HttpGet usersAuthoritiesRequest(int skipCount, int maxItems) {
+    String url = String.format("%s?%s=%s&%s=%s", authoritiesUrl, URL_PARAM_SKIP_COUNT, skipCount,
+        URL_PARAM_MAX_ITEMS, maxItems);
+    logger.debug("Hitting url: {}", url);
+    return createGetRequest(url);
+  }
+
+  HttpGet contentRequest(String contentUrlPath) {
+    HttpGet httpGet = new HttpGet(contentUrlPath);
+    httpGet.addHeader("Accept", MediaType.APPLICATION_BINARY.toString());
+    authenticate(httpGet);
+    return httpGet;
+  }
+
+  private HttpGet createGetRequest(String url) {
+    HttpGet httpGet = new HttpGet(url);
+    httpGet.addHeader("Accept", "application/json");
+    authenticate(httpGet);
+    return httpGet;
+  }
+
+  private HttpPost createPostRequest(String url, String json) {
+    HttpPost httpPost = new HttpPost(url);
+    httpPost.addHeader("Accept", "application/json");
+    httpPost.setEntity(new StringEntity(json, ContentType.APPLICATION_JSON));
+    authenticate(httpPost);
+    return httpPost;
+  }
+
+  private void authenticate(HttpRequestBase request) {
+    if (useBasicAuthentication()) {
+      request.addHeader("Authorization", "Basic " + Base64.encodeBase64String(String.format("%s:%s", username, password).getBytes(Charset.forName("UTF-8"))));
+    }
+  }
+
+  private boolean useBasicAuthentication() {
+    return username != null && !"".equals(username) && password != null;
+  }
+
+  private static void appendParameter(StringBuilder url, String name, Number value) {
+    if (value != null) {
+      url.append('&').append(name).append('=').append(value);
+    }
+  }
+
+  private String shardParameter() {
+    return (shard == null ? "" : "&" + URL_PARAM_SHARD + "=" + shard);
+  }
+
+  private String urlParameters(long lastTransactionId, long lastAclChangesetId) {
+    // TODO: URL encode
+    return String.format("%s=%d&%s=%d", URL_PARAM_LAST_TXN_ID, lastTransactionId, URL_PARAM_LAST_ACL_CS_ID, lastAclChangesetId);
+  }
+}
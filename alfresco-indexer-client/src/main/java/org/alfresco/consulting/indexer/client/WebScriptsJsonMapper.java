@@ -0,0 +1,217 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Maps the JSON payloads of the indexer webscripts to client objects, and the other way around;
+ * shared by the blocking and the non-blocking clients.
+ */
+class WebScriptsJsonMapper {
+  private static final String USERNAME = "username";
+  private static final String AUTHORITIES = "authorities";
+  private static final String UUIDS = "uuids";
+  private static final String UUID = "uuid";
+  private static final String DOCS = "docs";
+  private static final String USERS = "users";
+  private static final String DELETED = "deleted";
+  private static final String LAST_TXN_ID = "last_txn_id";
+  private static final String LAST_TXN_NODE_ID = "last_txn_node_id";
+
+  private final Gson gson = new Gson();
+
+  /**
+   * @param resource
+   *        released once the response is fully read, or closed
+   */
+  AlfrescoResponse toNodeChanges(InputStream content, Closeable resource) throws IOException {
+    JsonReader jsonReader = new JsonReader(new InputStreamReader(content, "UTF-8"));
+    jsonReader.setLenient(true);
+    return new AlfrescoResponse(new NodeChangesReader(gson, jsonReader, resource));
+  }
+
+  /**
+   * @param resource
+   *        released once the snapshot is fully read, or closed
+   */
+  AlfrescoSnapshot toSnapshot(InputStream content, Closeable resource) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(content, "UTF-8"));
+    return new AlfrescoSnapshot(new SnapshotReader(gson, reader, resource));
+  }
+
+  Map<String, Object> toMetadata(InputStream content) throws IOException {
+    @SuppressWarnings("unchecked")
+    Map<String, Object> map = gson.fromJson(new InputStreamReader(content, "UTF-8"), Map.class);
+    return toMetadata(map);
+  }
+
+  String toMetadataBatchRequest(Collection<String> nodeUuids) {
+    JsonObject body = new JsonObject();
+    body.add(UUIDS, gson.toJsonTree(nodeUuids));
+    return gson.toJson(body);
+  }
+
+  Map<String, Map<String, Object>> toMetadataBatch(InputStream content) throws IOException {
+    Map<String, Map<String, Object>> metadata = new HashMap<String, Map<String, Object>>();
+    Reader entityReader = new InputStreamReader(content, "UTF-8");
+    JsonObject responseObject = gson.fromJson(entityReader, JsonObject.class);
+    if (responseObject == null || !responseObject.has(DOCS) || !responseObject.get(DOCS).isJsonArray()) {
+      throw new AlfrescoParseException("Json response is missing docs.");
+    }
+    for (JsonElement documentElement : responseObject.getAsJsonArray(DOCS)) {
+      @SuppressWarnings("unchecked")
+      Map<String, Object> map = gson.fromJson(documentElement, Map.class);
+      Object uuid = map.get(UUID);
+      if (uuid == null) {
+        throw new AlfrescoParseException("Node details are missing the uuid: " + documentElement);
+      }
+      metadata.put(uuid.toString(), toMetadata(map));
+    }
+    return metadata;
+  }
+
+  AlfrescoUser toUser(InputStream content) throws IOException {
+    Reader entityReader = new InputStreamReader(content, "UTF-8");
+    JsonObject responseObject = gson.fromJson(entityReader, JsonObject.class);
+    return getUser(responseObject);
+  }
+
+  AlfrescoUserChanges toUserChanges(InputStream content) throws IOException {
+    JsonReader jsonReader = new JsonReader(new InputStreamReader(content, "UTF-8"));
+    jsonReader.setLenient(true);
+    List<AlfrescoUser> users = null;
+    List<String> deletedUsernames = new ArrayList<String>();
+    String lastTxnId = null;
+    String lastTxnNodeId = null;
+    jsonReader.beginObject();
+    while (jsonReader.hasNext()) {
+      String name = jsonReader.nextName();
+      if (USERS.equals(name)) {
+        users = readUsers(jsonReader);
+      } else if (DELETED.equals(name)) {
+        jsonReader.beginArray();
+        while (jsonReader.hasNext()) {
+          deletedUsernames.add(jsonReader.nextString());
+        }
+        jsonReader.endArray();
+      } else if (LAST_TXN_ID.equals(name)) {
+        lastTxnId = jsonReader.nextString();
+      } else if (LAST_TXN_NODE_ID.equals(name)) {
+        lastTxnNodeId = jsonReader.nextString();
+      } else {
+        jsonReader.skipValue();
+      }
+    }
+    jsonReader.endObject();
+    if (users == null || lastTxnId == null) {
+      throw new AlfrescoParseException("Json response is missing users or last_txn_id.");
+    }
+    return new AlfrescoUserChanges(users, deletedUsernames, Long.parseLong(lastTxnId),
+        (lastTxnNodeId == null ? null : Long.valueOf(lastTxnNodeId)));
+  }
+
+  /**
+   * Users are read one at a time, so that only their {@link AlfrescoUser} objects are held in memory,
+   * not the whole JSON tree of the response
+   */
+  List<AlfrescoUser> toUsers(InputStream content) throws IOException {
+    JsonReader jsonReader = new JsonReader(new InputStreamReader(content, "UTF-8"));
+    jsonReader.setLenient(true);
+    return readUsers(jsonReader);
+  }
+
+  private List<AlfrescoUser> readUsers(JsonReader jsonReader) throws IOException {
+    if (jsonReader.peek() != JsonToken.BEGIN_ARRAY) {
+      throw new AlfrescoParseException("Users must be a json array.");
+    }
+    List<AlfrescoUser> users = new ArrayList<AlfrescoUser>();
+    jsonReader.beginArray();
+    while (jsonReader.hasNext()) {
+      if (jsonReader.peek() != JsonToken.BEGIN_OBJECT) {
+        throw new AlfrescoParseException("User must be a json object.");
+      }
+      JsonObject userObject = gson.fromJson(jsonReader, JsonObject.class);
+      users.add(getUser(userObject));
+    }
+    jsonReader.endArray();
+    return users;
+  }
+
+  Map<String, Object> toMetadata(Map<String, Object> map) {
+    List<Map<String, String>> properties = extractPropertiesFieldFromMap(map,
+            "properties");
+
+    for (Map<String, String> e : properties) {
+      map.put(e.get("name"), e.get("value"));
+    }
+    return map;
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<Map<String, String>> extractPropertiesFieldFromMap(
+          Map<String, Object> map, String propertiesField) {
+    Object properties = map.remove(propertiesField);
+    if (!(properties instanceof List)) {
+      throw new AlfrescoDownException(propertiesField
+              + " is not of type List, it is of type " + properties.getClass());
+    }
+    return (List<Map<String, String>>) properties;
+  }
+
+  private AlfrescoUser getUser(JsonObject responseObject) {
+    String username = getUsername(responseObject);
+    List<String> authorities = getAuthorities(responseObject);
+    return new AlfrescoUser(username, authorities);
+  }
+
+  private String getUsername(JsonObject userObject) {
+    if (!userObject.has(USERNAME)) {
+      throw new AlfrescoParseException("Json response is missing username.");
+    }
+    JsonElement usernameElement = userObject.get(USERNAME);
+    if (!usernameElement.isJsonPrimitive() || !usernameElement.getAsJsonPrimitive().isString()) {
+      throw new AlfrescoParseException("Username must be a string. It was: " + usernameElement.toString());
+    }
+    return usernameElement.getAsString();
+  }
+
+  private List<String> getAuthorities(JsonObject userObject) {
+    List<String> authorities = new ArrayList<String>();
+    if (!userObject.has(AUTHORITIES)) {
+      throw new AlfrescoParseException("Json response is authorities.");
+    }
+    JsonElement authoritiesElement = userObject.get(AUTHORITIES);
+    if (!authoritiesElement.isJsonArray()) {
+      throw new AlfrescoParseException("Authorities must be a json array. It was: " + authoritiesElement.toString());
+    }
+    JsonArray authoritiesArray = authoritiesElement.getAsJsonArray();
+    for (JsonElement authorityElement : authoritiesArray) {
+      if (!authorityElement.isJsonPrimitive()) {
+        throw new AlfrescoParseException("Authority entry must be a string. It was: " + authoritiesElement.toString());
+      }
+      JsonPrimitive authorityPrimitive = authorityElement.getAsJsonPrimitive();
+      if (!authorityPrimitive.isString()) {
+        throw new AlfrescoParseException("Authority entry must be a string. It was: " + authoritiesElement.toString());
+      }
+      authorities.add(authorityPrimitive.getAsString());
+    }
+    return authorities;
+  }
+}
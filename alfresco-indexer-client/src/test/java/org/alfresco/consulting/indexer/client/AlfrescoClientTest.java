@@ -4,18 +4,23 @@ import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
 import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.InputStreamReader;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
@@ -41,7 +46,11 @@ public class AlfrescoClientTest {
       lastAclChangesetParam + "=[0-9]+";
   private final String metadataEndpoint = "/alfresco/service/node/details/" + STORE_PROTOCOL + "/" +
       STORE_ID + "/";
+  private final String batchMetadataEndpoint = "/alfresco/service/node/details/" + STORE_PROTOCOL + "/" +
+      STORE_ID;
   private final String authoritiesEndpoint = "/alfresco/service/api/node/auth/resolve/";
+  private final String snapshotEndpoint = "/alfresco/service/node/snapshot/" + STORE_PROTOCOL + "/" +
+      STORE_ID;
 
   @Rule
   public WireMockRule wireMockRule = new WireMockRule(8089);
@@ -54,6 +63,11 @@ public class AlfrescoClientTest {
         STORE_PROTOCOL, STORE_ID);
   }
 
+  @After
+  public void tearDown() {
+    client.close();
+  }
+
   private void stubResult(String body) {
     stubFor(get(urlMatching(changesEndpoint))
         .willReturn(aResponse()
@@ -93,6 +107,36 @@ public class AlfrescoClientTest {
     assertEquals(STORE_PROTOCOL, response.getStoreProtocol());
   }
 
+  @Test
+  public void nodeChangesShouldCarryVersionModifiedDateAndContentData() throws Exception {
+    stubResult("{ \"store_id\": \"" + STORE_ID + "\", \"store_protocol\": \"" + STORE_PROTOCOL + "\", " +
+        "\"docs\": [ { \"uuid\": \"abc123\", \"type\": \"cm:content\", \"deleted\": false, " +
+        "\"version\": \"3\", \"modified\": \"2014-03-05T10:30:00.000Z\", " +
+        "\"contentUrl\": \"store://2014/3/5/10/30/abc.bin\", \"contentSize\": \"1024\", " +
+        "\"mimetype\": \"text/plain\" }, " +
+        "{ \"uuid\": \"def456\", \"type\": \"cm:folder\", \"deleted\": true, \"version\": \"1\" } ], " +
+        "\"last_txn_id\": 2, \"last_acl_changeset_id\": 2 } ");
+
+    Iterator<AlfrescoNodeChange> changes = client.fetchNodes(0, 0).getNodeChanges().iterator();
+
+    AlfrescoNodeChange document = changes.next();
+    assertEquals("abc123", document.getUuid());
+    assertEquals("cm:content", document.getType());
+    assertFalse(document.isDeleted());
+    assertEquals(Long.valueOf(3), document.getVersion());
+    assertEquals("2014-03-05T10:30:00.000Z", document.getModified());
+    assertEquals("store://2014/3/5/10/30/abc.bin", document.getContentUrl());
+    assertEquals(Long.valueOf(1024), document.getContentSize());
+    assertEquals("text/plain", document.getMimetype());
+
+    AlfrescoNodeChange folder = changes.next();
+    assertTrue(folder.isDeleted());
+    assertEquals(Long.valueOf(1), folder.getVersion());
+    assertEquals(null, folder.getContentUrl());
+    assertEquals(null, folder.getContentSize());
+    assertFalse(changes.hasNext());
+  }
+
   @Test
   public void whenADocumentIsFetchedItShouldBeEnrichedWithStoreIdAndStoreProtocol() throws Exception {
     String noderef = "abc123";
@@ -123,6 +167,49 @@ public class AlfrescoClientTest {
     assertEquals(STORE_PROTOCOL, response.getStoreProtocol());
   }
 
+  @Test
+  public void whenCursorFieldsPrecedeTheDocumentsTheyShouldBeAvailableBeforeIterating() throws Exception {
+    stubResult("{ \"last_txn_id\": \"12\", " +
+        "\"last_acl_changeset_id\": \"7\", " +
+        "\"store_id\": \"" + STORE_ID + "\", " +
+        "\"store_protocol\": \"" + STORE_PROTOCOL + "\", " +
+        "\"docs\": [ { \"uuid\": \"abc123\" }, { \"uuid\": \"def456\" } ] } ");
+
+    AlfrescoResponse response = client.fetchNodes(0, 0);
+    assertEquals(12L, response.getLastTransactionId());
+    assertEquals(7L, response.getLastAclChangesetId());
+
+    Iterator<Map<String, Object>> documents = response.getDocuments().iterator();
+    Map<String, Object> doc = documents.next();
+    assertEquals("abc123", doc.get("uuid"));
+    assertEquals(STORE_ID, doc.get("store_id"));
+    assertEquals("def456", documents.next().get("uuid"));
+    assertFalse(documents.hasNext());
+  }
+
+  @Test
+  public void whenCursorFieldsFollowTheDocumentsTheDocumentsShouldNotBeLost() throws Exception {
+    stubResult("{ \"docs\": [ { \"uuid\": \"abc123\" }, { \"uuid\": \"def456\" } ], " +
+        "\"store_id\": \"" + STORE_ID + "\", " +
+        "\"store_protocol\": \"" + STORE_PROTOCOL + "\", " +
+        "\"last_txn_id\": 12," +
+        "\"last_acl_changeset_id\": 7 } ");
+
+    AlfrescoResponse response = client.fetchNodes(0, 0);
+    assertEquals(12L, response.getLastTransactionId());
+    assertEquals(7L, response.getLastAclChangesetId());
+    assertEquals(2, response.getDocumentList().size());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void whenStreamedDocumentsAreIteratedTwiceAnExceptionShouldBeThrown() throws Exception {
+    stubResult("{ \"docs\": [ { \"uuid\": \"abc123\" } ] } ");
+
+    AlfrescoResponse response = client.fetchNodes(0, 0);
+    response.getDocumentList();
+    response.getDocumentList();
+  }
+
   @Test
   public void whenEmptyListIsReturnedItIsHandled() throws Exception {
     stubResult("{ \"docs\": [ ], " +
@@ -151,6 +238,81 @@ public class AlfrescoClientTest {
     assertTrue(requests.get(0).getUrl().contains(this.lastAclChangesetParam+"="+lastAclChangesetId));
   }
 
+  @Test
+  public void whenPageSizesAreGivenTheyShouldBeSentToAlfresco() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint + "&maxTxns=[0-9]+&maxAclChangesets=[0-9]+"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"docs\": [ ], \"last_txn_id\": 50, \"last_acl_changeset_id\": 20 }")));
+
+    AlfrescoResponse response = client.fetchNodes(0, 0, 50, 20);
+    assertEquals(50L, response.getLastTransactionId());
+
+    List<LoggedRequest> requests = WireMock.findAll(getRequestedFor(urlMatching(changesEndpoint + ".*")));
+    assertEquals(1, requests.size());
+    assertTrue(requests.get(0).getUrl().contains("maxTxns=50"));
+    assertTrue(requests.get(0).getUrl().contains("maxAclChangesets=20"));
+  }
+
+  @Test
+  public void whenAStreamIsSkippedItsPageSizeShouldBeSentAsZero() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint + ".*"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"docs\": [ ], \"last_txn_id\": 9, \"last_acl_changeset_id\": 3 }")));
+
+    client.fetchNodes(new ChangesCursor(5L, 3L), 0, AlfrescoClient.SKIP);
+
+    String url = WireMock.findAll(getRequestedFor(urlMatching(changesEndpoint + ".*"))).get(0).getUrl();
+    assertFalse(url.contains("maxTxns"));
+    assertTrue(url.contains("maxAclChangesets=0"));
+  }
+
+  @Test
+  public void whenATransactionIsPartiallyReturnedItShouldBeResumedFromItsLastNode() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint + ".*"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"docs\": [ ], \"last_txn_id\": 7, \"last_acl_changeset_id\": 3, "
+                + "\"last_txn_node_id\": 42 }")));
+
+    AlfrescoResponse response = client.fetchNodes(0, 0);
+    ChangesCursor cursor = response.getCursor();
+    assertEquals(Long.valueOf(42L), response.getLastTransactionNodeId());
+    assertEquals(null, response.getLastAclNodeId());
+    assertEquals("7:42|3", cursor.toString());
+    assertEquals(cursor, ChangesCursor.valueOf("7:42|3"));
+
+    client.fetchNodes(cursor, 0, 0);
+    List<LoggedRequest> requests = WireMock.findAll(getRequestedFor(urlMatching(changesEndpoint + ".*")));
+    assertEquals(2, requests.size());
+    String url = requests.get(1).getUrl();
+    assertTrue(url.contains(lastTransactionParam + "=7"));
+    assertTrue(url.contains("lastTxnNodeId=42"));
+    assertFalse(url.contains("lastAclNodeId"));
+    assertFalse(url.contains("maxTxns"));
+  }
+
+  @Test
+  public void whenAShardIsSetOnlyItsChangesShouldBeRequested() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint + "&shard=1/3"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"store_id\": \"" + STORE_ID + "\", \"store_protocol\": \"" + STORE_PROTOCOL + "\", "
+                + "\"docs\": [], \"last_txn_id\": 7, \"last_acl_changeset_id\": 4 }")));
+    ((WebScriptsAlfrescoClient) client).setShard(1, 3);
+
+    client.fetchNodes(ChangesCursor.START, 0, 0);
+
+    List<LoggedRequest> requests = WireMock.findAll(getRequestedFor(urlMatching(changesEndpoint + ".*")));
+    assertEquals(1, requests.size());
+    assertTrue(requests.get(0).getUrl().endsWith("&shard=1/3"));
+  }
+
   @Test(expected = AlfrescoDownException.class)
   public void whenAlfrescoIsDownAnExceptionShouldBeThrown() throws Exception {
     stubFor(get(urlMatching(changesEndpoint)).willReturn(aResponse().withFault(Fault.EMPTY_RESPONSE)));
@@ -184,6 +346,127 @@ public class AlfrescoClientTest {
     Assert.assertEquals("5", metadata.get("foo"));
   }
 
+  @Test
+  public void whenSeveralNodesAreGivenThenTheMetadataIsFetchedInOneRequest()
+      throws Exception {
+    String testFile = CharStreams.toString(new InputStreamReader(getClass()
+        .getResourceAsStream("/metadata.batch.sample.json"), "UTF-8"));
+
+    stubFor(post(
+        urlEqualTo(batchMetadataEndpoint)).willReturn(
+        aResponse().withStatus(200)
+            .withHeader("Content-Type", "application/json").withBody(testFile)));
+
+    Map<String, Map<String, Object>> metadata = client.fetchMetadataBatch(
+        Arrays.asList("abc123", "def456", "ghi789"));
+
+    List<LoggedRequest> requests = WireMock.findAll(postRequestedFor(urlEqualTo(batchMetadataEndpoint)));
+    assertEquals(1, requests.size());
+    assertTrue(requests.get(0).getBodyAsString().contains("\"ghi789\""));
+
+    assertEquals(2, metadata.size());
+    assertEquals("A/B/C", metadata.get("abc123").get("path"));
+    assertEquals("pluto", metadata.get("abc123").get("pippo"));
+    assertEquals("A/B/D", metadata.get("def456").get("path"));
+    assertEquals("5", metadata.get("def456").get("foo"));
+    assertFalse(metadata.containsKey("ghi789"));
+  }
+
+  @Test
+  public void snapshotShouldStreamNodesWithTheirChangesFieldsThenThePagingFields() throws Exception {
+    String testFile = CharStreams.toString(new InputStreamReader(getClass()
+        .getResourceAsStream("/snapshot.sample.ndjson"), "UTF-8"));
+    stubFor(get(urlEqualTo(snapshotEndpoint + "?lastNodeId=100&maxNodes=2")).willReturn(
+        aResponse().withStatus(200)
+            .withHeader("Content-Type", "application/x-ndjson").withBody(testFile)));
+
+    AlfrescoSnapshot snapshot = client.fetchSnapshot(100, 2);
+    try {
+      Iterator<Map<String, Object>> documents = snapshot.getDocuments().iterator();
+      Map<String, Object> document = documents.next();
+      assertEquals("abc123", document.get("uuid"));
+      assertEquals(Long.valueOf(3), AlfrescoNodeChange.fromDocument(document).getVersion());
+      assertEquals("store://2014/3/5/10/30/abc.bin", AlfrescoNodeChange.fromDocument(document).getContentUrl());
+      assertEquals("def456", AlfrescoNodeChange.fromDocument(documents.next()).getUuid());
+      assertFalse(documents.hasNext());
+
+      assertEquals(Long.valueOf(800), snapshot.getLastNodeId());
+      assertEquals(Long.valueOf(900), snapshot.getMaxNodeId());
+      assertEquals(new ChangesCursor(42, 17), snapshot.getCursor());
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  @Test
+  public void whenThePagingFieldsAreReadFirstTheSnapshotDocumentsShouldBeBuffered() throws Exception {
+    stubFor(get(urlEqualTo(snapshotEndpoint + "?lastNodeId=0")).willReturn(
+        aResponse().withStatus(200)
+            .withBody("{\"uuid\":\"abc123\",\"path\":\"A\",\"properties\":[]}\n" +
+                "{\"last_txn_id\":\"42\",\"last_acl_changeset_id\":\"17\"}\n")));
+
+    AlfrescoSnapshot snapshot = client.fetchSnapshot(0, 0);
+
+    assertEquals(null, snapshot.getLastNodeId());
+    assertEquals(new ChangesCursor(42, 17), snapshot.getCursor());
+    Iterator<Map<String, Object>> documents = snapshot.getDocuments().iterator();
+    assertEquals("abc123", documents.next().get("uuid"));
+    assertFalse(documents.hasNext());
+  }
+
+  @Test
+  public void snapshotRangeShouldBeBoundedByTheLastNodeId() throws Exception {
+    stubFor(get(urlEqualTo(snapshotEndpoint + "?lastNodeId=100&toNodeId=500")).willReturn(
+        aResponse().withStatus(200)
+            .withBody("{\"uuid\":\"abc123\",\"path\":\"A\",\"properties\":[]}\n" +
+                "{\"last_txn_id\":\"42\",\"last_acl_changeset_id\":\"17\",\"max_node_id\":\"900\"}\n")));
+
+    AlfrescoSnapshot snapshot = client.fetchSnapshot(100, Long.valueOf(500), 0);
+
+    Iterator<Map<String, Object>> documents = snapshot.getDocuments().iterator();
+    assertEquals("abc123", documents.next().get("uuid"));
+    assertFalse(documents.hasNext());
+    assertEquals(null, snapshot.getLastNodeId());
+    assertEquals(Long.valueOf(900), snapshot.getMaxNodeId());
+  }
+
+  @Test(expected = AlfrescoParseException.class)
+  public void whenTheSnapshotIsTruncatedItShouldFail() throws Exception {
+    stubFor(get(urlEqualTo(snapshotEndpoint + "?lastNodeId=0")).willReturn(
+        aResponse().withStatus(200)
+            .withBody("{\"uuid\":\"abc123\",\"path\":\"A\",\"properties\":[]}\n")));
+
+    AlfrescoSnapshot snapshot = client.fetchSnapshot(0, 0);
+    for (Map<String, Object> document : snapshot.getDocuments()) {
+      assertNotNull(document.get("uuid"));
+    }
+  }
+
+  @Test
+  public void whenMoreRequestsThanPooledConnectionsAreSentConnectionsShouldBeReused()
+      throws Exception {
+    String testFile = CharStreams.toString(new InputStreamReader(getClass()
+        .getResourceAsStream("/metadata.sample.json"), "UTF-8"));
+    String uuid = "abc123";
+    stubFor(get(
+        urlEqualTo(metadataEndpoint + uuid)).willReturn(
+        aResponse().withStatus(200)
+            .withHeader("Content-Type", "application/json").withBody(testFile)));
+    stubResult("{ \"docs\": [ ], " +
+        "\"store_id\": \"\", " +
+        "\"store_protocol\": \"\", " +
+        "\"last_txn_id\": 0," +
+        "\"last_acl_changeset_id\": 0  } ");
+
+    client.close();
+    client = new WebScriptsAlfrescoClient("http", "localhost:8089", "/alfresco/service",
+        STORE_PROTOCOL, STORE_ID, null, null, 1, 1);
+    for (int i = 0; i < 5; i++) {
+      assertEquals("A/B/C", client.fetchMetadata(uuid).get("path"));
+      assertTrue(client.fetchNodes(0, 0).getDocumentList().isEmpty());
+    }
+  }
+
   @Test
   public void whenFetchUserAuthoritiesIsCalledTheCorrectUserAndAuthoritiesShouldBeReturned()
       throws Exception {
@@ -240,6 +523,42 @@ public class AlfrescoClientTest {
         "GROUP_site_swsdp_SiteManager"), mjackson.getAuthorities());
   }
 
+  @Test
+  public void allUsersAuthoritiesShouldBeFetchedLazilyOnePageAtATime() throws Exception {
+    stubFor(get(urlEqualTo(authoritiesEndpoint + "?skipCount=0&maxItems=2")).willReturn(
+        aResponse().withStatus(200).withHeader("Content-Type", "application/json")
+            .withBody("[ { \"username\": \"abeecher\", \"authorities\": [ \"GROUP_EVERYONE\" ] }, "
+                + "{ \"username\": \"admin\", \"authorities\": [ \"GROUP_EVERYONE\" ] } ]")));
+    stubFor(get(urlEqualTo(authoritiesEndpoint + "?skipCount=2&maxItems=2")).willReturn(
+        aResponse().withStatus(200).withHeader("Content-Type", "application/json")
+            .withBody("[ { \"username\": \"mjackson\", \"authorities\": [ \"GROUP_EVERYONE\" ] } ]")));
+
+    Iterator<AlfrescoUser> users = client.iterateAllUsersAuthorities(2);
+
+    assertEquals("abeecher", users.next().getUsername());
+    assertEquals("admin", users.next().getUsername());
+    assertEquals(1, WireMock.findAll(getRequestedFor(urlMatching(authoritiesEndpoint + ".*"))).size());
+    assertEquals("mjackson", users.next().getUsername());
+    assertFalse(users.hasNext());
+    assertEquals(2, WireMock.findAll(getRequestedFor(urlMatching(authoritiesEndpoint + ".*"))).size());
+  }
+
+  @Test
+  public void usersAuthoritiesChangesShouldBeRequestedFromTheGivenPosition() throws Exception {
+    stubFor(get(urlEqualTo(authoritiesEndpoint + "?lastTxnId=100&lastTxnNodeId=7&maxItems=50")).willReturn(
+        aResponse().withStatus(200).withHeader("Content-Type", "application/json")
+            .withBody("{ \"users\": [ { \"username\": \"abeecher\", \"authorities\": [ \"GROUP_EVERYONE\" ] } ], "
+                + "\"deleted\": [ \"mjackson\" ], \"last_txn_id\": \"105\", \"last_txn_node_id\": \"12\" }")));
+
+    AlfrescoUserChanges changes = client.fetchUsersAuthoritiesChanges(100L, 7L, 50);
+
+    assertEquals(1, changes.getUsers().size());
+    assertEquals("abeecher", changes.getUsers().get(0).getUsername());
+    assertEquals(Arrays.asList("mjackson"), changes.getDeletedUsernames());
+    assertEquals(105L, changes.getLastTransactionId());
+    assertEquals(Long.valueOf(12L), changes.getLastTransactionNodeId());
+  }
+
   @Test
   public void whenUsernameAndPasswordAreConfiguredBasicAuthenticationShouldBeUsed() throws Exception {
     String noderef = "abc123";
@@ -262,6 +581,7 @@ public class AlfrescoClientTest {
                 "\"last_txn_id\": 2, "+
                 "\"last_acl_changeset_id\": 2 } ")));
 
+    client.close();
     client = new WebScriptsAlfrescoClient("http", "localhost:8089", "/alfresco/service", STORE_PROTOCOL, STORE_ID, "username", "password");
     AlfrescoResponse response = client.fetchNodes(0, 0);
     List<Map<String, Object>> list = response.getDocumentList();
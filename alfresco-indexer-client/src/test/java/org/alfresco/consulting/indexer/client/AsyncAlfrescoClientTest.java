@@ -0,0 +1,169 @@
+package org.alfresco.consulting.indexer.client;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.http.Fault;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class AsyncAlfrescoClientTest {
+  private static final String STORE_PROTOCOL = "workspace";
+  private static final String STORE_ID = "spacesStore";
+  private final String changesEndpoint = "/alfresco/service/node/changes/" + STORE_PROTOCOL + "/" +
+      STORE_ID + "\\?lastTxnId=[0-9]+&lastAclChangesetId=[0-9]+";
+  private final String metadataEndpoint = "/alfresco/service/node/details/" + STORE_PROTOCOL + "/" +
+      STORE_ID + "/";
+  private final String batchMetadataEndpoint = "/alfresco/service/node/details/" + STORE_PROTOCOL + "/" +
+      STORE_ID;
+  private final String authoritiesEndpoint = "/alfresco/service/api/node/auth/resolve/";
+  private final String contentEndpoint = "/alfresco/service/api/node/content/workspace/SpacesStore/abc123";
+
+  @Rule
+  public WireMockRule wireMockRule = new WireMockRule(8089);
+
+  private AsyncAlfrescoClient client;
+
+  @Before
+  public void setup() {
+    client = new AsyncWebScriptsAlfrescoClient("http", "localhost:8089", "/alfresco/service",
+        STORE_PROTOCOL, STORE_ID);
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+  }
+
+  private String resource(String name) throws Exception {
+    return CharStreams.toString(new InputStreamReader(getClass().getResourceAsStream(name), "UTF-8"));
+  }
+
+  @Test
+  public void whenNodesAreFetchedAsynchronouslyTheResponseShouldBeMapped() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"docs\": [ { \"uuid\": \"abc123\", \"type\": \"cm:content\", \"deleted\": false } ], " +
+                "\"store_id\": \"" + STORE_ID + "\", " +
+                "\"store_protocol\": \"" + STORE_PROTOCOL + "\", " +
+                "\"last_txn_id\": 2," +
+                "\"last_acl_changeset_id\": 3  } ")));
+
+    AlfrescoResponse response = client.fetchNodesAsync(0, 0).get();
+    List<Map<String, Object>> list = response.getDocumentList();
+
+    assertEquals(1, list.size());
+    assertEquals("abc123", list.get(0).get("uuid"));
+    assertEquals(STORE_ID, list.get(0).get("store_id"));
+    assertEquals(2L, response.getLastTransactionId());
+    assertEquals(3L, response.getLastAclChangesetId());
+  }
+
+  @Test
+  public void whenMetadataIsFetchedAsynchronouslyItShouldBeFlattened() throws Exception {
+    stubFor(get(urlEqualTo(metadataEndpoint + "abc123")).willReturn(
+        aResponse().withStatus(200)
+            .withHeader("Content-Type", "application/json").withBody(resource("/metadata.sample.json"))));
+    stubFor(post(urlEqualTo(batchMetadataEndpoint)).willReturn(
+        aResponse().withStatus(200)
+            .withHeader("Content-Type", "application/json").withBody(resource("/metadata.batch.sample.json"))));
+
+    ListenableFuture<Map<String, Object>> single = client.fetchMetadataAsync("abc123");
+    ListenableFuture<Map<String, Map<String, Object>>> batch = client.fetchMetadataBatchAsync(
+        Arrays.asList("abc123", "def456"));
+
+    assertEquals("A/B/C", single.get().get("path"));
+    assertEquals("pluto", single.get().get("pippo"));
+    assertEquals(2, batch.get().size());
+    assertEquals("5", batch.get().get("def456").get("foo"));
+  }
+
+  @Test
+  public void whenUserAuthoritiesAreFetchedAsynchronouslyTheUserShouldBeReturned() throws Exception {
+    stubFor(get(urlEqualTo(authoritiesEndpoint + "admin")).willReturn(
+        aResponse().withStatus(200)
+            .withHeader("Content-Type", "application/json").withBody(resource("/authorities.sample.json"))));
+
+    AlfrescoUser user = client.fetchUserAuthoritiesAsync("admin").get();
+
+    assertEquals("admin", user.getUsername());
+    assertTrue(user.getAuthorities().contains("GROUP_EVERYONE"));
+  }
+
+  @Test
+  public void whenContentIsFetchedAsynchronouslyItShouldBeReadable() throws Exception {
+    byte[] content = new byte[]{1, 2, 3, 4, 5};
+    stubFor(get(urlEqualTo(contentEndpoint)).willReturn(
+        aResponse().withStatus(200).withBody(content)));
+
+    InputStream stream = client.fetchContentAsync("http://localhost:8089" + contentEndpoint).get();
+    try {
+      assertTrue(Arrays.equals(content, ByteStreams.toByteArray(stream)));
+    } finally {
+      stream.close();
+    }
+  }
+
+  @Test
+  public void whenManyRequestsAreInFlightTheyShouldAllComplete() throws Exception {
+    stubFor(get(urlEqualTo(metadataEndpoint + "abc123")).willReturn(
+        aResponse().withStatus(200).withFixedDelay(50)
+            .withHeader("Content-Type", "application/json").withBody(resource("/metadata.sample.json"))));
+
+    List<ListenableFuture<Map<String, Object>>> futures = new ArrayList<ListenableFuture<Map<String, Object>>>();
+    for (int i = 0; i < 50; i++) {
+      futures.add(client.fetchMetadataAsync("abc123"));
+    }
+
+    for (Map<String, Object> metadata : Futures.allAsList(futures).get()) {
+      assertEquals("A/B/C", metadata.get("path"));
+    }
+    assertEquals(50, WireMock.findAll(getRequestedFor(urlEqualTo(metadataEndpoint + "abc123"))).size());
+  }
+
+  @Test
+  public void whenAlfrescoIsDownTheFutureShouldFail() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint)).willReturn(aResponse().withFault(Fault.EMPTY_RESPONSE)));
+
+    try {
+      client.fetchNodesAsync(0, 0).get();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof AlfrescoDownException);
+      return;
+    }
+    throw new AssertionError("The future should have failed");
+  }
+
+  @Test(expected = AlfrescoDownException.class)
+  public void whenAlfrescoIsDownTheBlockingMethodsShouldThrow() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint)).willReturn(aResponse().withFault(Fault.EMPTY_RESPONSE)));
+
+    client.fetchNodes(0, 0);
+  }
+}
@@ -0,0 +1,47 @@
+<#macro nodeDetails node>
+<#escape x as jsonUtils.encodeJSONString(x)>
+{
+  <#if node.uuid??>
+    "uuid" : "${node.uuid}",
+  </#if>
+  "readableAuthorities" : [
+    <#list node.readableAuthorities as readableAuthority>
+      "${readableAuthority}"
+      <#if readableAuthority_has_next>,</#if>
+    </#list>
+  ],
+  "path" : "${node.path}",
+  <#if node.shareUrlPath??>
+    "shareUrlPath" : "${shareUrlPrefix + node.shareUrlPath}",
+  </#if>
+  <#if node.contentUrlPath??>
+    "contentUrlPath" : "${contentUrlPrefix + node.contentUrlPath}",
+  </#if>
+  <#if node.thumbnailUrlPath??>
+    "thumbnailUrlPath" : "${thumbnailUrlPrefix + node.thumbnailUrlPath}",
+  </#if>
+  <#if node.previewUrlPath??>
+    "previewUrlPath" : "${previewUrlPrefix + node.previewUrlPath}",
+  </#if>
+
+  <#assign propNames = node.properties?keys>
+  "aspects" : [
+    <#list node.aspects as aspect>
+    "${aspect}"
+    <#if aspect_has_next>,</#if>
+  </#list>
+  ],
+  "properties" : [
+    <#list propNames as propName>
+      {
+        <#assign propPair=node.properties[propName] >
+        "name" : "${propName}",
+        "type" : "${propPair.first}",
+        "value" : "${propPair.second}"
+      }
+      <#if propName_has_next>,</#if>
+    </#list>
+  ]
+}
+</#escape>
+</#macro>
@@ -0,0 +1,9 @@
+<#import "details.lib.ftl" as detailsLib/>
+{
+  "docs" : [
+    <#list nodes as node>
+      <@detailsLib.nodeDetails node=node/>
+      <#if node_has_next>,</#if>
+    </#list>
+  ]
+}
\ No newline at end of file
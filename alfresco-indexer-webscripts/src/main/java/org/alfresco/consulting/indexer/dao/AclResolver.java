@@ -0,0 +1,145 @@
+package org.alfresco.consulting.indexer.dao;
+
+import org.alfresco.repo.domain.permissions.Acl;
+import org.alfresco.repo.domain.permissions.AclDAO;
+import org.alfresco.repo.security.permissions.AccessControlEntry;
+import org.alfresco.repo.security.permissions.AccessControlList;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.util.EqualsHelper;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves the authorities having an ALLOWED entry on an ACL, including the entries of the ACLs it
+ * inherits from: the entries of the ACL itself come first, followed by those of its parent, then of its
+ * grandparent, and so on, as they were rendered out by NodeDetailsWebScript.
+ *
+ * Resolved ACLs are kept in a bounded (LRU) cache, keyed by ACL id; each entry holds the ACL changeset
+ * id that was current when it was resolved, and points to the entry of the ACL it inherits from, so
+ * that ACLs sharing the same parent reuse its readers. An entry is resolved again as soon as its ACL,
+ * or any ACL up in its inheritance chain, belongs to a different ACL changeset; checking it only needs
+ * AclDAO.getAcl, which is served by the repository ACL cache, so ACL entries are only read for ACLs
+ * that are new or have changed.
+ */
+public class AclResolver {
+
+  protected static final Log logger = LogFactory.getLog(AclResolver.class);
+
+  /**
+   * @return the authorities having an ALLOWED entry on the given ACL or on the ACLs it inherits from,
+   * without duplicates
+   */
+  public List<String> getReadableAuthorities(Long aclId) {
+    if (aclId == null) {
+      return Collections.emptyList();
+    }
+    return getEntry(aclId).readableAuthorities;
+  }
+
+  /**
+   * Drops all resolved ACLs
+   */
+  public void clear() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  private AclEntry getEntry(Long aclId) {
+    AclEntry entry;
+    synchronized (cache) {
+      entry = cache.get(aclId);
+    }
+    if (entry != null && isCurrent(entry)) {
+      return entry;
+    }
+    entry = resolve(aclId);
+    synchronized (cache) {
+      cache.put(aclId, entry);
+    }
+    return entry;
+  }
+
+  private AclEntry resolve(Long aclId) {
+    logger.debug("Resolving readable authorities of ACL " + aclId);
+    Acl acl = aclDao.getAcl(aclId);
+    if (acl == null) {
+      throw new IllegalArgumentException("ACL " + aclId + " does not exist");
+    }
+
+    AclEntry parent = null;
+    Long parentAclId = acl.getInheritsFrom();
+    if (parentAclId != null && acl.getInherits()) {
+      logger.debug("parent acl is " + parentAclId);
+      parent = getEntry(parentAclId);
+    }
+
+    Set<String> readableAuthorities = new LinkedHashSet<String>();
+    AccessControlList accessControlList = aclDao.getAccessControlList(aclId);
+    for (AccessControlEntry ace : accessControlList.getEntries()) {
+      if (ace.getAccessStatus().equals(AccessStatus.ALLOWED)) {
+        readableAuthorities.add(ace.getAuthority());
+      }
+    }
+    if (parent != null) {
+      readableAuthorities.addAll(parent.readableAuthorities);
+    }
+    return new AclEntry(aclId, acl.getAclChangeSetId(), parent,
+        Collections.unmodifiableList(new ArrayList<String>(readableAuthorities)));
+  }
+
+  /**
+   * @return true if neither the entry ACL nor the ACLs it inherits from have moved to another ACL changeset
+   */
+  private boolean isCurrent(AclEntry entry) {
+    for (AclEntry current = entry; current != null; current = current.parent) {
+      Acl acl = aclDao.getAcl(current.aclId);
+      if (acl == null || !EqualsHelper.nullSafeEquals(acl.getAclChangeSetId(), current.aclChangeSetId)) {
+        logger.debug("ACL " + current.aclId + " has changed, resolving ACL " + entry.aclId + " again");
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static class AclEntry {
+    private final Long aclId;
+    private final Long aclChangeSetId;
+    private final AclEntry parent;
+    private final List<String> readableAuthorities;
+
+    private AclEntry(Long aclId, Long aclChangeSetId, AclEntry parent, List<String> readableAuthorities) {
+      this.aclId = aclId;
+      this.aclChangeSetId = aclChangeSetId;
+      this.parent = parent;
+      this.readableAuthorities = readableAuthorities;
+    }
+  }
+
+  private AclDAO aclDao;
+  private Map<Long, AclEntry> cache = createCache(1000);
+
+  private static Map<Long, AclEntry> createCache(final int maxSize) {
+    return new LinkedHashMap<Long, AclEntry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, AclEntry> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  public void setAclDao(AclDAO aclDao) {
+    this.aclDao = aclDao;
+  }
+  public void setMaxCacheSize(int maxCacheSize) {
+    this.cache = createCache(maxCacheSize);
+  }
+}
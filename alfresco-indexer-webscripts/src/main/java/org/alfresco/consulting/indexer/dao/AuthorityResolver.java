@@ -0,0 +1,200 @@
+package org.alfresco.consulting.indexer.dao;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListener;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves the authorities of a user, as AuthorityService.getAuthoritiesForUser does, without walking
+ * the whole group hierarchy for each user: the closure of each group (the group and all the groups it
+ * belongs to, transitively) is kept in a bounded (LRU) cache, keyed by group name, so that resolving a
+ * user only reads the groups it directly belongs to, and then unions their cached closures.
+ *
+ * Roles are mapped the same way AuthorityServiceImpl maps them, from the same admin and guest users and
+ * groups: ROLE_ADMINISTRATOR for admin users and members of admin groups, ROLE_GUEST for guests, and
+ * GROUP_EVERYONE for all the other users.
+ *
+ * The whole cache is dropped whenever a membership is added or removed, or a group is deleted, both
+ * when it happens and once its transaction is committed, so that closures read meanwhile by other
+ * transactions are not kept. Only the changes made on this repository node are seen: in a cluster,
+ * set maxCacheSize to 0, so that AuthorityService.getAuthoritiesForUser is called for each user instead.
+ */
+public class AuthorityResolver implements NodeServicePolicies.OnCreateChildAssociationPolicy,
+    NodeServicePolicies.OnDeleteChildAssociationPolicy, NodeServicePolicies.BeforeDeleteNodePolicy {
+
+  protected static final Log logger = LogFactory.getLog(AuthorityResolver.class);
+
+  /**
+   * @return the authorities (groups, roles and GROUP_EVERYONE) of the given user, without the user itself
+   */
+  public Set<String> getAuthoritiesForUser(String username) {
+    if (maxCacheSize <= 0) {
+      return authorityService.getAuthoritiesForUser(username);
+    }
+
+    Set<String> authorities = new HashSet<String>();
+    for (String container : authorityService.getContainingAuthorities(null, username, true)) {
+      authorities.addAll(getClosure(container, new HashSet<String>()));
+    }
+
+    boolean isAdmin = adminUsers.contains(username) || containsAny(authorities, adminGroups);
+    boolean isGuest = guestUsers.contains(username) || containsAny(authorities, guestGroups);
+    if (isAdmin) {
+      authorities.add(PermissionService.ADMINISTRATOR_AUTHORITY);
+    }
+    if (isGuest) {
+      authorities.add(PermissionService.GUEST_AUTHORITY);
+    } else {
+      authorities.add(PermissionService.ALL_AUTHORITIES);
+    }
+    return authorities;
+  }
+
+  /**
+   * Drops all resolved group closures
+   */
+  public void clear() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  /**
+   * @param resolving
+   *        the groups whose closure is being resolved, so that a cycle in the hierarchy cannot loop
+   * @return the given group and all the groups it belongs to, transitively
+   */
+  private Set<String> getClosure(String group, Set<String> resolving) {
+    Set<String> closure;
+    synchronized (cache) {
+      closure = cache.get(group);
+    }
+    if (closure != null) {
+      return closure;
+    }
+
+    resolving.add(group);
+    Set<String> groups = new HashSet<String>();
+    groups.add(group);
+    for (String container : authorityService.getContainingAuthorities(null, group, true)) {
+      if (!resolving.contains(container)) {
+        groups.addAll(getClosure(container, resolving));
+      }
+    }
+    resolving.remove(group);
+    closure = Collections.unmodifiableSet(groups);
+    synchronized (cache) {
+      cache.put(group, closure);
+    }
+    return closure;
+  }
+
+  private static boolean containsAny(Set<String> authorities, Set<String> candidates) {
+    for (String candidate : candidates) {
+      if (authorities.contains(candidate)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Binds the resolver to membership changes and group deletions, so that it drops the closures they
+   * may have changed
+   */
+  public void init() {
+    policyComponent.bindAssociationBehaviour(NodeServicePolicies.OnCreateChildAssociationPolicy.QNAME,
+        ContentModel.TYPE_AUTHORITY_CONTAINER, ContentModel.ASSOC_MEMBER,
+        new JavaBehaviour(this, "onCreateChildAssociation"));
+    policyComponent.bindAssociationBehaviour(NodeServicePolicies.OnDeleteChildAssociationPolicy.QNAME,
+        ContentModel.TYPE_AUTHORITY_CONTAINER, ContentModel.ASSOC_MEMBER,
+        new JavaBehaviour(this, "onDeleteChildAssociation"));
+    policyComponent.bindClassBehaviour(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME,
+        ContentModel.TYPE_AUTHORITY_CONTAINER, new JavaBehaviour(this, "beforeDeleteNode"));
+  }
+
+  @Override
+  public void onCreateChildAssociation(ChildAssociationRef childAssocRef, boolean isNewNode) {
+    invalidate();
+  }
+
+  @Override
+  public void onDeleteChildAssociation(ChildAssociationRef childAssocRef) {
+    invalidate();
+  }
+
+  @Override
+  public void beforeDeleteNode(NodeRef nodeRef) {
+    invalidate();
+  }
+
+  private void invalidate() {
+    clear();
+    AlfrescoTransactionSupport.bindListener(clearOnCommit);
+  }
+
+  private final TransactionListener clearOnCommit = new TransactionListenerAdapter() {
+    @Override
+    public void afterCommit() {
+      logger.debug("Group memberships have changed, dropping resolved group closures");
+      clear();
+    }
+  };
+
+  private AuthorityService authorityService;
+  private PolicyComponent policyComponent;
+  private Set<String> adminUsers = Collections.emptySet();
+  private Set<String> adminGroups = Collections.emptySet();
+  private Set<String> guestUsers = Collections.emptySet();
+  private Set<String> guestGroups = Collections.emptySet();
+  private int maxCacheSize = 10000;
+  private Map<String, Set<String>> cache = createCache(maxCacheSize);
+
+  private static Map<String, Set<String>> createCache(final int maxSize) {
+    return new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  public void setAuthorityService(AuthorityService authorityService) {
+    this.authorityService = authorityService;
+  }
+  public void setPolicyComponent(PolicyComponent policyComponent) {
+    this.policyComponent = policyComponent;
+  }
+  public void setAdminUsers(Set<String> adminUsers) {
+    this.adminUsers = adminUsers;
+  }
+  public void setAdminGroups(Set<String> adminGroups) {
+    this.adminGroups = adminGroups;
+  }
+  public void setGuestUsers(Set<String> guestUsers) {
+    this.guestUsers = guestUsers;
+  }
+  public void setGuestGroups(Set<String> guestGroups) {
+    this.guestGroups = guestGroups;
+  }
+  public void setMaxCacheSize(int maxCacheSize) {
+    this.maxCacheSize = maxCacheSize;
+    this.cache = createCache(maxCacheSize);
+  }
+}
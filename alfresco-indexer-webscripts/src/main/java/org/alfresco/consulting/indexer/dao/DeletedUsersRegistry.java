@@ -0,0 +1,106 @@
+package org.alfresco.consulting.indexer.dao;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records the username of each deleted person along with the transaction that deleted it, so that the
+ * changes of the users' authorities can report deleted users: once deleted, a person node loses its
+ * type and properties, so its username cannot be read from the node anymore.
+ *
+ * Usernames are kept with the AttributeService, in the same transaction as the deletion, so that they
+ * are visible along with it, on all the nodes of a cluster. A username is forgotten as soon as a person
+ * is created again with it, so that at most one entry is kept per username deleted and not reused.
+ */
+public class DeletedUsersRegistry implements NodeServicePolicies.BeforeDeleteNodePolicy,
+    NodeServicePolicies.OnCreateNodePolicy {
+
+  protected static final Log logger = LogFactory.getLog(DeletedUsersRegistry.class);
+
+  private static final String ATTRIBUTE_APPLICATION = "alfresco-indexer";
+  private static final String ATTRIBUTE_DELETED_USERS = "deletedUsers";
+
+  /**
+   * @param fromTransactionId
+   *        the transaction to start after
+   * @param toTransactionId
+   *        the last transaction to include
+   * @return the users deleted by the given transactions, mapped to the transaction that deleted them
+   */
+  public Map<String, Long> getDeletedUsers(final long fromTransactionId, final long toTransactionId) {
+    final Map<String, Long> deletedUsers = new TreeMap<String, Long>();
+    attributeService.getAttributes(new AttributeService.AttributeQueryCallback() {
+      @Override
+      public boolean handleAttribute(Long id, Serializable value, Serializable[] keys) {
+        if (value instanceof Long && keys.length > 2) {
+          long transactionId = (Long) value;
+          if (transactionId > fromTransactionId && transactionId <= toTransactionId) {
+            deletedUsers.put(String.valueOf(keys[2]), transactionId);
+          }
+        }
+        return true;
+      }
+    }, ATTRIBUTE_APPLICATION, ATTRIBUTE_DELETED_USERS);
+    return deletedUsers;
+  }
+
+  /**
+   * Binds the registry to the creation and deletion of persons
+   */
+  public void init() {
+    policyComponent.bindClassBehaviour(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME,
+        ContentModel.TYPE_PERSON, new JavaBehaviour(this, "beforeDeleteNode"));
+    policyComponent.bindClassBehaviour(NodeServicePolicies.OnCreateNodePolicy.QNAME,
+        ContentModel.TYPE_PERSON, new JavaBehaviour(this, "onCreateNode"));
+  }
+
+  @Override
+  public void beforeDeleteNode(NodeRef nodeRef) {
+    String username = (String) nodeService.getProperty(nodeRef, ContentModel.PROP_USERNAME);
+    if (username == null) {
+      return;
+    }
+    Long transactionId = nodeDao.getCurrentTransactionId(true);
+    attributeService.setAttribute(transactionId, ATTRIBUTE_APPLICATION, ATTRIBUTE_DELETED_USERS, username);
+    logger.debug(String.format("User %s deleted by transaction %s", username, transactionId));
+  }
+
+  @Override
+  public void onCreateNode(ChildAssociationRef childAssocRef) {
+    String username = (String) nodeService.getProperty(childAssocRef.getChildRef(), ContentModel.PROP_USERNAME);
+    if (username != null) {
+      attributeService.removeAttribute(ATTRIBUTE_APPLICATION, ATTRIBUTE_DELETED_USERS, username);
+    }
+  }
+
+  private AttributeService attributeService;
+  private NodeService nodeService;
+  private NodeDAO nodeDao;
+  private PolicyComponent policyComponent;
+
+  public void setAttributeService(AttributeService attributeService) {
+    this.attributeService = attributeService;
+  }
+  public void setNodeService(NodeService nodeService) {
+    this.nodeService = nodeService;
+  }
+  public void setNodeDao(NodeDAO nodeDao) {
+    this.nodeDao = nodeDao;
+  }
+  public void setPolicyComponent(PolicyComponent policyComponent) {
+    this.policyComponent = policyComponent;
+  }
+}
@@ -2,67 +2,292 @@ package org.alfresco.consulting.indexer.dao;
 
 import org.alfresco.consulting.indexer.entities.NodeBatchLoadEntity;
 import org.alfresco.consulting.indexer.entities.NodeEntity;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.dictionary.DictionaryDAO;
+import org.alfresco.repo.dictionary.DictionaryListener;
+import org.alfresco.repo.domain.qname.QNameDAO;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
 import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.QName;
 import org.alfresco.util.Pair;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.ibatis.session.ResultHandler;
 import org.apache.ibatis.session.RowBounds;
 import org.mybatis.spring.SqlSessionTemplate;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
-public class IndexingDaoImpl {
+/**
+ * Loads the nodes changed by transactions and ACL changesets.
+ *
+ * The allowed types are filtered on alf_node.type_qname_id, so that the database can use its
+ * index; they are resolved to QName ids (with their sub-types, if includeSubTypes is set) when
+ * first needed, and resolved again whenever the dictionary is reloaded.
+ *
+ * Nodes are returned with their version, modified date and cm:content data (content URL, size and
+ * mimetype), joined in the same query, so that clients can tell whether a node really changed
+ * without loading its details.
+ *
+ * Pages are bounded in SQL by the MySQL, PostgreSQL, Oracle and SQL Server maps (limit, rownum or top),
+ * so that the database only sorts and sends maxResults rows; the generic map, used by the other
+ * databases, is only bounded by RowBounds.
+ *
+ * Nodes can also be loaded by node id, regardless of when they changed, in order to export a whole
+ * store (or a range of node ids of it, so that several clients can export it in parallel) while
+ * bootstrapping a client.
+ *
+ * All of them can be restricted to a {@link Shard}, so that several clients can each consume the
+ * changes of their own subset of the nodes, with their own cursor.
+ *
+ * Person and authority container nodes can be loaded by transaction as well, regardless of the allowed
+ * types, so that clients can tell which users' authorities changed: the node of a person (or group) is
+ * touched whenever it is added to, or removed from, a group.
+ */
+public class IndexingDaoImpl implements DictionaryListener {
 
   private static final String SELECT_NODES_BY_ACLS = "alfresco.index.select_NodeIndexesByAclChangesetId";
   private static final String SELECT_NODES_BY_TXNS = "alfresco.index.select_NodeIndexesByTransactionId";
+  private static final String SELECT_NODES_BY_IDS = "alfresco.index.select_NodeIndexesByNodeId";
+  private static final String SELECT_MAX_NODE_ID = "alfresco.index.select_MaxNodeId";
+  private static final String SELECT_MAX_TXN_ID = "alfresco.index.select_MaxTransactionId";
+  private static final String SELECT_MAX_ACL_CHANGESET_ID = "alfresco.index.select_MaxAclChangesetId";
+
+  private static final QName[] AUTHORITY_TYPES = { ContentModel.TYPE_PERSON, ContentModel.TYPE_AUTHORITY_CONTAINER };
 
   protected static final Log logger = LogFactory.getLog(IndexingDaoImpl.class);
 
-  public List<NodeEntity> getNodesByAclChangesetId(Pair<Long, StoreRef> store, Long lastAclChangesetId, int maxResults) {
-    StoreRef storeRef = store.getSecond();
-    if (maxResults <= 0 || maxResults == Integer.MAX_VALUE) {
-      throw new IllegalArgumentException("Maximum results must be a reasonable number.");
+  /**
+   * Hands each node over to the given handler while rows are read, ordered by ACL changeset and node id,
+   * starting after the (ACL changeset, node id) position of the query
+   */
+  public void getNodesByAclChangesetId(NodeQuery query, ResultHandler handler) {
+    logger.debug("[getNodesByAclChangesetId] " + query);
+
+    NodeBatchLoadEntity nodeLoadEntity = createLoadEntity(query);
+    if (nodeLoadEntity != null) {
+      template.select(SELECT_NODES_BY_ACLS, nodeLoadEntity, new RowBounds(0, query.getMaxResults()), handler);
     }
+  }
 
-    logger.debug("[getNodesByAclChangesetId] On Store "+storeRef.getProtocol()+"://"+storeRef.getIdentifier());
+  /**
+   * Hands each node over to the given handler while rows are read, ordered by transaction and node id,
+   * starting after the (transaction, node id) position of the query
+   */
+  public void getNodesByTransactionId(NodeQuery query, ResultHandler handler) {
+    logger.debug("[getNodesByTransactionId] " + query);
 
-    NodeBatchLoadEntity nodeLoadEntity = new NodeBatchLoadEntity();
-    nodeLoadEntity.setStoreId(store.getFirst());
-    nodeLoadEntity.setStoreProtocol(storeRef.getProtocol());
-    nodeLoadEntity.setStoreIdentifier(storeRef.getIdentifier());
-    nodeLoadEntity.setMinId(lastAclChangesetId);
-    nodeLoadEntity.setMaxId(lastAclChangesetId+maxResults);
-    nodeLoadEntity.setAllowedTypes(this.allowedTypes);
+    NodeBatchLoadEntity nodeLoadEntity = createLoadEntity(query);
+    if (nodeLoadEntity != null) {
+      nodeLoadEntity.setMaxId(query.getMaxId());
+      template.select(SELECT_NODES_BY_TXNS, nodeLoadEntity, new RowBounds(0, query.getMaxResults()), handler);
+    }
+  }
+
+  /**
+   * Returns the person and authority container nodes, ordered by transaction and node id, that follow
+   * the (transaction, node id) position of the query, regardless of the allowed types and of its shard
+   */
+  public List<NodeEntity> getAuthoritiesByTransactionId(NodeQuery query) {
+    logger.debug("[getAuthoritiesByTransactionId] " + query);
+
+    Set<Long> typeIds = new HashSet<Long>();
+    for (QName type : AUTHORITY_TYPES) {
+      Pair<Long, QName> qnamePair = qnameDao.getQName(type);
+      if (qnamePair != null) {
+        typeIds.add(qnamePair.getFirst());
+      }
+    }
+    if (typeIds.isEmpty()) {
+      return Collections.emptyList();
+    }
 
-    return (List<NodeEntity>) template.selectList(SELECT_NODES_BY_ACLS, nodeLoadEntity, new RowBounds(0, Integer.MAX_VALUE));
+    NodeBatchLoadEntity nodeLoadEntity = newLoadEntity(query);
+    nodeLoadEntity.setMaxId(query.getMaxId());
+    nodeLoadEntity.setAllowedTypeIds(typeIds);
+    return (List<NodeEntity>) template.selectList(SELECT_NODES_BY_TXNS, nodeLoadEntity,
+        new RowBounds(0, query.getMaxResults()));
   }
 
-  public List<NodeEntity> getNodesByTransactionId(Pair<Long, StoreRef> store, Long lastTransactionId, int maxResults) {
-    StoreRef storeRef = store.getSecond();
-    if (maxResults <= 0 || maxResults == Integer.MAX_VALUE) {
-      throw new IllegalArgumentException("Maximum results must be a reasonable number.");
+  /**
+   * Returns the nodes of the store, ordered by node id, whose id is greater than the lastId of the query
+   * (0 to start from the first node of the store), up to its maxId
+   */
+  public List<NodeEntity> getNodesByNodeId(NodeQuery query) {
+    logger.debug("[getNodesByNodeId] " + query);
+
+    NodeBatchLoadEntity nodeLoadEntity = createLoadEntity(query);
+    if (nodeLoadEntity == null) {
+      return Collections.emptyList();
     }
+    nodeLoadEntity.setMaxNodeId(query.getMaxId());
+    return (List<NodeEntity>) template.selectList(SELECT_NODES_BY_IDS, nodeLoadEntity,
+        new RowBounds(0, query.getMaxResults()));
+  }
+
+  /**
+   * @return the id of the last node of the store, or 0 if the store is empty
+   */
+  public long getMaxNodeId(Pair<Long, StoreRef> store) {
+    Long maxId = (Long) template.selectOne(SELECT_MAX_NODE_ID, store.getFirst());
+    return (maxId == null ? 0L : maxId);
+  }
+
+  /**
+   * @return the id of the last committed transaction, or 0 if there is none
+   */
+  public long getMaxTransactionId() {
+    Long maxId = (Long) template.selectOne(SELECT_MAX_TXN_ID);
+    return (maxId == null ? 0L : maxId);
+  }
+
+  /**
+   * @return the id of the last ACL changeset, or 0 if there is none
+   */
+  public long getMaxAclChangesetId() {
+    Long maxId = (Long) template.selectOne(SELECT_MAX_ACL_CHANGESET_ID);
+    return (maxId == null ? 0L : maxId);
+  }
 
-    logger.debug("[getNodesByTransactionId] On Store "+storeRef.getProtocol()+"://"+storeRef.getIdentifier());
+  /**
+   * @return the query parameters, restricted to the allowed types and to the shard of the query, or null
+   *         if no node can match them
+   */
+  private NodeBatchLoadEntity createLoadEntity(NodeQuery query) {
+    NodeBatchLoadEntity nodeLoadEntity = newLoadEntity(query);
+    Shard shard = query.getShard();
+    if (shard != null) {
+      nodeLoadEntity.setShard(shard.getIndex(), shard.getCount());
+    }
+    if (!filterAllowedTypes(nodeLoadEntity)) {
+      return null;
+    }
+    return nodeLoadEntity;
+  }
 
+  private NodeBatchLoadEntity newLoadEntity(NodeQuery query) {
+    StoreRef storeRef = query.getStore().getSecond();
     NodeBatchLoadEntity nodeLoadEntity = new NodeBatchLoadEntity();
-    nodeLoadEntity.setStoreId(store.getFirst());
+    nodeLoadEntity.setStoreId(query.getStore().getFirst());
     nodeLoadEntity.setStoreProtocol(storeRef.getProtocol());
     nodeLoadEntity.setStoreIdentifier(storeRef.getIdentifier());
-    nodeLoadEntity.setMinId(lastTransactionId);
-    nodeLoadEntity.setMaxId(lastTransactionId+maxResults);
-    nodeLoadEntity.setAllowedTypes(this.allowedTypes);
+    nodeLoadEntity.setMinId(query.getLastId());
+    nodeLoadEntity.setMinNodeId(query.getLastNodeId());
+    nodeLoadEntity.setMaxResults(query.getMaxResults());
+    nodeLoadEntity.setContentQNameId(getContentQNameId());
+    return nodeLoadEntity;
+  }
 
-    return (List<NodeEntity>) template.selectList(SELECT_NODES_BY_TXNS, nodeLoadEntity, new RowBounds(0, Integer.MAX_VALUE));
+  /**
+   * @return false if none of the allowed types exists in the repository, hence no node can match
+   */
+  private boolean filterAllowedTypes(NodeBatchLoadEntity nodeLoadEntity) {
+    if (allowedTypes == null || allowedTypes.isEmpty()) {
+      return true;
+    }
+    Set<Long> typeIds = getAllowedTypeIds();
+    nodeLoadEntity.setAllowedTypeIds(typeIds);
+    return !typeIds.isEmpty();
+  }
+
+  /**
+   * @return the id of cm:content, or null if no content property has been stored yet
+   */
+  private Long getContentQNameId() {
+    Pair<Long, QName> qnamePair = qnameDao.getQName(ContentModel.PROP_CONTENT);
+    return (qnamePair == null ? null : qnamePair.getFirst());
+  }
+
+  private Set<Long> getAllowedTypeIds() {
+    Set<Long> typeIds = allowedTypeIds;
+    if (typeIds != null) {
+      return typeIds;
+    }
+
+    Set<QName> types = new HashSet<QName>();
+    for (String allowedType : allowedTypes) {
+      QName type = QName.createQName(allowedType.trim());
+      types.add(type);
+      if (includeSubTypes) {
+        Collection<QName> subTypes = dictionaryService.getSubTypes(type, true);
+        if (subTypes != null) {
+          types.addAll(subTypes);
+        }
+      }
+    }
+
+    typeIds = new HashSet<Long>();
+    boolean resolved = true;
+    for (QName type : types) {
+      Pair<Long, QName> qnamePair = qnameDao.getQName(type);
+      if (qnamePair == null) {
+        // No node of this type has been created yet; it will get an id when the first one is
+        resolved = false;
+      } else {
+        typeIds.add(qnamePair.getFirst());
+      }
+    }
+    typeIds = Collections.unmodifiableSet(typeIds);
+    if (logger.isDebugEnabled()) {
+      logger.debug("Resolved allowed types " + types + " to QName ids " + typeIds);
+    }
+    if (resolved) {
+      allowedTypeIds = typeIds;
+    }
+    return typeIds;
+  }
+
+  /**
+   * Registers this DAO with the dictionary, so that allowed types are resolved again when models change
+   */
+  public void init() {
+    if (dictionaryDao != null) {
+      dictionaryDao.registerListener(this);
+    }
+  }
+
+  @Override
+  public void onDictionaryInit() {
+  }
+
+  @Override
+  public void afterDictionaryInit() {
+    allowedTypeIds = null;
+  }
+
+  @Override
+  public void afterDictionaryDestroy() {
+    allowedTypeIds = null;
   }
 
   private SqlSessionTemplate template;
   private Set<String> allowedTypes;
+  private boolean includeSubTypes;
+  private QNameDAO qnameDao;
+  private DictionaryService dictionaryService;
+  private DictionaryDAO dictionaryDao;
+  private volatile Set<Long> allowedTypeIds;
   public void setSqlSessionTemplate(SqlSessionTemplate sqlSessionTemplate) {
     this.template = sqlSessionTemplate;
   }
   public void setAllowedTypes(Set<String> allowedTypes) {
     this.allowedTypes = allowedTypes;
+    this.allowedTypeIds = null;
+  }
+  public void setIncludeSubTypes(boolean includeSubTypes) {
+    this.includeSubTypes = includeSubTypes;
+  }
+  public void setQnameDao(QNameDAO qnameDao) {
+    this.qnameDao = qnameDao;
+  }
+  public void setDictionaryService(DictionaryService dictionaryService) {
+    this.dictionaryService = dictionaryService;
+  }
+  public void setDictionaryDao(DictionaryDAO dictionaryDao) {
+    this.dictionaryDao = dictionaryDao;
   }
 }
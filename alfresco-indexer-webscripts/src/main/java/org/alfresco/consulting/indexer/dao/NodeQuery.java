@@ -0,0 +1,87 @@
+package org.alfresco.consulting.indexer.dao;
+
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.util.Pair;
+
+/**
+ * A page of nodes to load with {@link IndexingDaoImpl}: at most maxResults nodes of a store that follow
+ * the (lastId, lastNodeId) position, where lastId is the id of a transaction, of an ACL changeset or of a
+ * node, depending on the query it is passed to.
+ *
+ * The page can be bounded by maxId (the last transaction, or node, included), and restricted to a
+ * {@link Shard}.
+ */
+public class NodeQuery {
+  private final Pair<Long, StoreRef> store;
+  private final Long lastId;
+  private final int maxResults;
+  private Long lastNodeId;
+  private Long maxId;
+  private Shard shard;
+
+  public NodeQuery(Pair<Long, StoreRef> store, Long lastId, int maxResults) {
+    if (maxResults <= 0 || maxResults == Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Maximum results must be a reasonable number.");
+    }
+    this.store = store;
+    this.lastId = lastId;
+    this.maxResults = maxResults;
+  }
+
+  public Pair<Long, StoreRef> getStore() {
+    return store;
+  }
+
+  public Long getLastId() {
+    return lastId;
+  }
+
+  public int getMaxResults() {
+    return maxResults;
+  }
+
+  public Long getLastNodeId() {
+    return lastNodeId;
+  }
+
+  /**
+   * @param lastNodeId
+   *        the last node returned for lastId, or null if the transaction (or ACL changeset) has been
+   *        fully returned
+   */
+  public void setLastNodeId(Long lastNodeId) {
+    this.lastNodeId = lastNodeId;
+  }
+
+  public Long getMaxId() {
+    return maxId;
+  }
+
+  /**
+   * @param maxId
+   *        the last transaction (or node) of the page, or null to load nodes up to the last one
+   */
+  public void setMaxId(Long maxId) {
+    this.maxId = maxId;
+  }
+
+  public Shard getShard() {
+    return shard;
+  }
+
+  /**
+   * @param shard
+   *        the shard of the nodes to load, or null to load nodes of any shard
+   */
+  public void setShard(Shard shard) {
+    this.shard = shard;
+  }
+
+  @Override
+  public String toString() {
+    StoreRef storeRef = store.getSecond();
+    return storeRef.getProtocol() + "://" + storeRef.getIdentifier() + " after " + lastId
+        + (lastNodeId == null ? "" : ":" + lastNodeId) + (maxId == null ? "" : " up to " + maxId)
+        + (shard == null ? "" : " in shard " + shard) + ", at most " + maxResults;
+  }
+}
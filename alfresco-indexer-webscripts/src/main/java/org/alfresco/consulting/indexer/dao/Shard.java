@@ -0,0 +1,51 @@
+package org.alfresco.consulting.indexer.dao;
+
+/**
+ * One of count disjoint subsets of the nodes of the repository, so that several clients
+ * can each consume the changes feed of a store for their own subset only, each with its own cursor.
+ *
+ * A node belongs to the shard (alf_node.id mod count); its id never changes, so a node always belongs
+ * to the same shard, and the predicate is evaluated by the database along with the rest of the query.
+ */
+public class Shard {
+  private final int index;
+  private final int count;
+
+  public Shard(int index, int count) {
+    if (count <= 0 || index < 0 || index >= count) {
+      throw new IllegalArgumentException("Invalid shard " + index + "/" + count);
+    }
+    this.index = index;
+    this.count = count;
+  }
+
+  /**
+   * @param shard
+   *        the shard, as index/count (e.g. 0/4 for the first of 4 shards)
+   */
+  public static Shard valueOf(String shard) {
+    int separator = shard.indexOf('/');
+    if (separator < 0) {
+      throw new IllegalArgumentException("Invalid shard " + shard + ", expected index/count");
+    }
+    try {
+      return new Shard(Integer.parseInt(shard.substring(0, separator).trim()),
+          Integer.parseInt(shard.substring(separator + 1).trim()));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid shard " + shard + ", expected index/count", e);
+    }
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  @Override
+  public String toString() {
+    return index + "/" + count;
+  }
+}
@@ -1,19 +1,24 @@
 package org.alfresco.consulting.indexer.entities;
 
-import java.util.List;
 import java.util.Set;
 
 public class NodeBatchLoadEntity extends org.alfresco.repo.domain.node.ibatis.NodeBatchLoadEntity {
   private Long minId;
+  private Long minNodeId;
   private Long maxId;
-  private Set<String> allowedTypes;
+  private Long maxNodeId;
+  private Integer maxResults;
+  private Set<Long> allowedTypeIds;
+  private Long contentQNameId;
+  private Integer shardIndex;
+  private Integer shardCount;
 
   //These input values will be set on all returned NodeEntity objects returned by iBatis mappers
   private String storeProtocol;
   private String storeIdentifier;
 
-  public Set<String> getAllowedTypes() {
-    return allowedTypes;
+  public Set<Long> getAllowedTypeIds() {
+    return allowedTypeIds;
   }
 
   public Long getMinId() {
@@ -24,16 +29,90 @@ public class NodeBatchLoadEntity extends org.alfresco.repo.domain.node.ibatis.No
     this.minId = minId;
   }
 
+  public Long getMinNodeId() {
+    return minNodeId;
+  }
+
+  /**
+   * @param minNodeId
+   *        the id of the last node already returned for the transaction (or ACL changeset) minId;
+   *        null if all its nodes have been returned
+   */
+  public void setMinNodeId(Long minNodeId) {
+    this.minNodeId = minNodeId;
+  }
+
   public Long getMaxId() {
     return maxId;
   }
 
+  /**
+   * @param maxId
+   *        the last transaction whose nodes are returned, when loading nodes by transaction; null to
+   *        return nodes up to the last transaction
+   */
   public void setMaxId(Long maxId) {
     this.maxId = maxId;
   }
 
-  public void setAllowedTypes(Set<String> allowedTypes) {
-    this.allowedTypes = allowedTypes;
+  public Long getMaxNodeId() {
+    return maxNodeId;
+  }
+
+  /**
+   * @param maxNodeId
+   *        the id of the last node to return, when loading nodes by node id; null to return nodes up
+   *        to the last one of the store
+   */
+  public void setMaxNodeId(Long maxNodeId) {
+    this.maxNodeId = maxNodeId;
+  }
+
+  public Integer getMaxResults() {
+    return maxResults;
+  }
+
+  public void setMaxResults(Integer maxResults) {
+    this.maxResults = maxResults;
+  }
+
+  /**
+   * @param allowedTypeIds
+   *        the ids (in alf_qname) of the node types to return; null to return nodes of any type
+   */
+  public void setAllowedTypeIds(Set<Long> allowedTypeIds) {
+    this.allowedTypeIds = allowedTypeIds;
+  }
+
+  public Long getContentQNameId() {
+    return contentQNameId;
+  }
+
+  /**
+   * @param contentQNameId
+   *        the id (in alf_qname) of cm:content, whose content data is returned with each node
+   */
+  public void setContentQNameId(Long contentQNameId) {
+    this.contentQNameId = contentQNameId;
+  }
+
+  public Integer getShardIndex() {
+    return shardIndex;
+  }
+
+  public Integer getShardCount() {
+    return shardCount;
+  }
+
+  /**
+   * @param shardIndex
+   *        the remainder of the node ids to return, divided by shardCount
+   * @param shardCount
+   *        the number of shards; null to return nodes of any shard
+   */
+  public void setShard(Integer shardIndex, Integer shardCount) {
+    this.shardIndex = shardIndex;
+    this.shardCount = shardCount;
   }
 
   public String getStoreProtocol() {
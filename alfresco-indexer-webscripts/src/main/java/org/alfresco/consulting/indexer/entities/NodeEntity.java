@@ -5,6 +5,10 @@ public class NodeEntity extends org.alfresco.repo.domain.node.NodeEntity {
   private String typeNamespace;
   private Long aclChangesetId;
   private Long transactionId;
+  private String modified;
+  private String contentUrl;
+  private Long contentSize;
+  private String mimetype;
 
   @Override
   public int hashCode()
@@ -56,4 +60,40 @@ public class NodeEntity extends org.alfresco.repo.domain.node.NodeEntity {
   public void setTransactionId(Long transactionId) {
     this.transactionId = transactionId;
   }
+
+  public String getModified() {
+    return modified;
+  }
+
+  public void setModified(String modified) {
+    this.modified = modified;
+  }
+
+  /**
+   * @return the URL of the cm:content binary in the content store, or null if the node has no content;
+   *         content URLs are never reused, so a new URL means new content
+   */
+  public String getContentUrl() {
+    return contentUrl;
+  }
+
+  public void setContentUrl(String contentUrl) {
+    this.contentUrl = contentUrl;
+  }
+
+  public Long getContentSize() {
+    return contentSize;
+  }
+
+  public void setContentSize(Long contentSize) {
+    this.contentSize = contentSize;
+  }
+
+  public String getMimetype() {
+    return mimetype;
+  }
+
+  public void setMimetype(String mimetype) {
+    this.mimetype = mimetype;
+  }
 }
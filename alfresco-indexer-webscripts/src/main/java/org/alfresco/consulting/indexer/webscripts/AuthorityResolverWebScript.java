@@ -1,7 +1,17 @@
 package org.alfresco.consulting.indexer.webscripts;
 
+import org.alfresco.consulting.indexer.dao.AuthorityResolver;
+import org.alfresco.consulting.indexer.dao.DeletedUsersRegistry;
+import org.alfresco.consulting.indexer.dao.IndexingDaoImpl;
+import org.alfresco.consulting.indexer.dao.NodeQuery;
+import org.alfresco.consulting.indexer.entities.NodeEntity;
+import org.alfresco.model.ContentModel;
 import org.alfresco.query.PagingRequest;
 import org.alfresco.query.PagingResults;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
 import org.alfresco.service.cmr.security.AuthorityService;
 import org.alfresco.service.cmr.security.AuthorityType;
 import org.alfresco.service.cmr.security.PersonService;
@@ -10,59 +20,205 @@ import org.alfresco.util.Pair;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.cxf.common.util.StringUtils;
-import org.springframework.extensions.webscripts.Cache;
-import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.Format;
 import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
 import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+import org.springframework.extensions.webscripts.json.JSONWriter;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * Given a username, renders out the list of authorities (users and groups) it belongs to
+ * Given a username, renders out the list of authorities (users and groups) it belongs to; without a
+ * username, renders out the authorities of all users, sorted by username.
  *
- * Please check src/main/amp/config/alfresco/extension/templates/webscripts/com/findwise/alfresco/authresolve.get.desc.xml
- * to know more about the RestFul interface to invoke the WebScript
+ * All users can be paged through with skipCount and maxItems (up to maxItemsLimit users per page); a
+ * page holding less than maxItems users is the last one. Users are written to the response as soon as
+ * their authorities are resolved, so that only one page of people is held in memory.
+ *
+ * With lastTxnId, only the users whose authorities changed after that transaction are rendered out, in
+ * a JSON object along with the usernames of the users deleted meanwhile (deleted) and the position
+ * reached (last_txn_id, and last_txn_node_id when the page is full), to be sent back as lastTxnId (and
+ * lastTxnNodeId) to get the next changes. The node of a person or group is touched when it is added to
+ * or removed from a group: changed persons are rendered out, and so are all the users contained by
+ * changed groups. A page ends once it holds maxItems users, after the person or group that reached it.
+ *
+ * The position never moves past the last person, group or deleted user actually read, so that the
+ * transactions still running while the page is read, which may commit with a lower id than the last
+ * one, are read by the next pages.
  *
- * List of pending activities (or TODOs)
- * - Using JSON libraries (or StringBuffer), render out the payload without passing through FreeMarker template
+ * Authorities are resolved by the AuthorityResolver, which caches the transitive parents of each group.
+ *
+ * Please check src/main/amp/config/alfresco/extension/templates/webscripts/org/alfresco/consulting/indexer/webscripts/authresolve.get.desc.xml
+ * to know more about the RestFul interface to invoke the WebScript
  */
-public class AuthorityResolverWebScript extends DeclarativeWebScript {
+public class AuthorityResolverWebScript extends AbstractWebScript {
 
   protected static final Log logger = LogFactory.getLog(AuthorityResolverWebScript.class);
 
   @Override
-  protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
-
-    Map<String,Set<String>> authoritiesPerUser = new HashMap<String,Set<String>>();
-    Set<String> usersToParse = new HashSet<String>();
-
+  public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
     //Parsing parameters passed from the WebScript invocation
     Map<String, String> templateArgs = req.getServiceMatch().getTemplateVars();
     String username = templateArgs.get("username");
+    String skipCountString = req.getParameter("skipCount");
+    String maxItemsString = req.getParameter("maxItems");
+    String lastTxnIdString = req.getParameter("lastTxnId");
+
+    if (StringUtils.isEmpty(username) && lastTxnIdString != null) {
+      writeChangedUsers(req, res, Long.parseLong(lastTxnIdString));
+      return;
+    }
 
+    List<String> usersToParse = new ArrayList<String>();
     if (StringUtils.isEmpty(username)) {
-      PagingRequest pagingRequest = new PagingRequest(Integer.MAX_VALUE);
+      int skipCount = (skipCountString == null ? 0 : Integer.parseInt(skipCountString));
+      int maxItems = (maxItemsString == null ? Integer.MAX_VALUE : Integer.parseInt(maxItemsString));
+      if (skipCount < 0 || maxItems <= 0 || (maxItemsString != null && maxItems > maxItemsLimit)) {
+        throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+            String.format("Cannot resolve %s users from %s, the limit is %s per page", maxItems, skipCount,
+                maxItemsLimit));
+      }
+      logger.debug(String.format("Resolving the authorities of users from %s (maxItems: %s)", skipCount,
+          maxItemsString));
+
+      //Sorted, so that pages do not overlap
+      List<Pair<QName, Boolean>> sortProps = new ArrayList<Pair<QName, Boolean>>();
+      sortProps.add(new Pair<QName, Boolean>(ContentModel.PROP_USERNAME, Boolean.TRUE));
       PagingResults<PersonService.PersonInfo> people =
           this.personService.getPeople(
               "",
               new ArrayList<QName>(),
-              new ArrayList<Pair<QName, Boolean>>(),
-              pagingRequest);
-      for(PersonService.PersonInfo personInfo : people.getPage()) {
+              sortProps,
+              new PagingRequest(skipCount, maxItems));
+      for (PersonService.PersonInfo personInfo : people.getPage()) {
         usersToParse.add(personInfo.getUserName());
       }
     } else {
       usersToParse.add(username);
     }
 
-    for(String user : usersToParse) {
-      Set<String> userAuth = authorityService.getAuthoritiesForUser(user);
-      authoritiesPerUser.put(user,userAuth);
+    res.setContentType(Format.JSON.mimetype());
+    res.setContentEncoding("UTF-8");
+    JSONWriter json = new JSONWriter(res.getWriter());
+    json.startArray();
+    for (String user : usersToParse) {
+      writeUser(json, user);
     }
+    json.endArray();
+    res.getWriter().flush();
 
-    Map<String, Object> model = new HashMap<String, Object>(1, 1.0f);
-    model.put("authoritiesPerUser",authoritiesPerUser);
-    return model;
+    logger.debug(String.format("Resolved the authorities of %s users", usersToParse.size()));
+  }
+
+  /**
+   * Renders out the users whose authorities changed in the transactions following the
+   * (lastTxnId, lastTxnNodeId) position, and the position reached
+   */
+  private void writeChangedUsers(WebScriptRequest req, WebScriptResponse res, long lastTxnId) throws IOException {
+    String lastTxnNodeIdString = req.getParameter("lastTxnNodeId");
+    String maxItemsString = req.getParameter("maxItems");
+    Long lastTxnNodeId = (lastTxnNodeIdString == null ? null : Long.valueOf(lastTxnNodeIdString));
+    int maxItems = (maxItemsString == null ? maxItemsLimit : Integer.parseInt(maxItemsString));
+    if (maxItems <= 0 || maxItems > maxItemsLimit) {
+      throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+          String.format("Cannot resolve %s changed authorities, the limit is %s per page", maxItems, maxItemsLimit));
+    }
+
+    //Read before the authorities and the deleted users, so that both are read up to the same transaction
+    long maxTxnId = indexingService.getMaxTransactionId();
+    Pair<Long, StoreRef> store = nodeDao.getStore(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
+    NodeQuery query = new NodeQuery(store, lastTxnId, maxItems);
+    query.setLastNodeId(lastTxnNodeId);
+    query.setMaxId(maxTxnId);
+    List<NodeEntity> nodes = indexingService.getAuthoritiesByTransactionId(query);
+
+    //Groups expand to all their users, so the page ends once it holds maxItems users
+    Set<String> changedUsers = new TreeSet<String>();
+    NodeEntity lastNode = null;
+    for (NodeEntity node : nodes) {
+      if (changedUsers.size() >= maxItems) {
+        break;
+      }
+      lastNode = node;
+      NodeRef nodeRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, node.getUuid());
+      if (!nodeService.exists(nodeRef)) {
+        continue;
+      }
+      if (ContentModel.TYPE_PERSON.equals(QName.createQName(node.getTypeNamespace(), node.getTypeName()))) {
+        String user = (String) nodeService.getProperty(nodeRef, ContentModel.PROP_USERNAME);
+        if (user != null) {
+          changedUsers.add(user);
+        }
+      } else {
+        String group = (String) nodeService.getProperty(nodeRef, ContentModel.PROP_AUTHORITY_NAME);
+        if (group != null) {
+          changedUsers.addAll(authorityService.getContainedAuthorities(AuthorityType.USER, group, false));
+        }
+      }
+    }
+
+    boolean full = (lastNode != null && (lastNode != nodes.get(nodes.size() - 1) || nodes.size() >= maxItems));
+    //The transaction of lastTxnNodeId has not been fully read yet, nor has the one of the last node of a full page
+    long fromTxnId = (lastTxnNodeId == null ? lastTxnId : lastTxnId - 1);
+    long toTxnId = (full ? lastNode.getTransactionId() - 1 : maxTxnId);
+    Map<String, Long> deletedUsers = deletedUsersRegistry.getDeletedUsers(fromTxnId, toTxnId);
+
+    res.setContentType(Format.JSON.mimetype());
+    res.setContentEncoding("UTF-8");
+    JSONWriter json = new JSONWriter(res.getWriter());
+    json.startObject();
+    json.startValue("users");
+    json.startArray();
+    for (String user : changedUsers) {
+      writeUser(json, user);
+    }
+    json.endArray();
+    json.endValue();
+    json.startValue("deleted");
+    json.startArray();
+    for (String user : deletedUsers.keySet()) {
+      if (!changedUsers.contains(user)) {
+        json.writeValue(user);
+      }
+    }
+    json.endArray();
+    json.endValue();
+    if (full) {
+      json.writeValue("last_txn_id", String.valueOf(lastNode.getTransactionId()));
+      json.writeValue("last_txn_node_id", String.valueOf(lastNode.getId()));
+    } else {
+      //Up to the last transaction actually read; lastTxnId beyond the last transaction reads the current position
+      long position = Math.min(lastTxnId, maxTxnId);
+      if (lastNode != null) {
+        position = Math.max(position, lastNode.getTransactionId());
+      }
+      for (Long deletedTxnId : deletedUsers.values()) {
+        position = Math.max(position, deletedTxnId);
+      }
+      json.writeValue("last_txn_id", String.valueOf(position));
+    }
+    json.endObject();
+    res.getWriter().flush();
+
+    logger.debug(String.format("Resolved the authorities of %s users, changed by %s authorities after transaction %s, and %s deleted users",
+        changedUsers.size(), nodes.size(), lastTxnId, deletedUsers.size()));
+  }
+
+  private void writeUser(JSONWriter json, String user) throws IOException {
+    json.startObject();
+    json.writeValue("username", user);
+    json.startValue("authorities");
+    json.startArray();
+    for (String authority : authorityResolver.getAuthoritiesForUser(user)) {
+      json.writeValue(authority);
+    }
+    json.endArray();
+    json.endValue();
+    json.endObject();
   }
 
   private AuthorityService authorityService;
@@ -70,9 +226,39 @@ public class AuthorityResolverWebScript extends DeclarativeWebScript {
     this.authorityService = authorityService;
   }
 
+  private AuthorityResolver authorityResolver;
+  public void setAuthorityResolver(AuthorityResolver authorityResolver) {
+    this.authorityResolver = authorityResolver;
+  }
+
   private PersonService personService;
   public void setPersonService(PersonService personService) {
     this.personService = personService;
   }
 
-}
\ No newline at end of file
+  private DeletedUsersRegistry deletedUsersRegistry;
+  public void setDeletedUsersRegistry(DeletedUsersRegistry deletedUsersRegistry) {
+    this.deletedUsersRegistry = deletedUsersRegistry;
+  }
+
+  private IndexingDaoImpl indexingService;
+  public void setIndexingService(IndexingDaoImpl indexingService) {
+    this.indexingService = indexingService;
+  }
+
+  private NodeDAO nodeDao;
+  public void setNodeDao(NodeDAO nodeDao) {
+    this.nodeDao = nodeDao;
+  }
+
+  private NodeService nodeService;
+  public void setNodeService(NodeService nodeService) {
+    this.nodeService = nodeService;
+  }
+
+  private int maxItemsLimit = 5000;
+  public void setMaxItemsLimit(int maxItemsLimit) {
+    this.maxItemsLimit = maxItemsLimit;
+  }
+
+}
@@ -1,19 +1,23 @@
 package org.alfresco.consulting.indexer.webscripts;
 
 import org.alfresco.consulting.indexer.dao.IndexingDaoImpl;
+import org.alfresco.consulting.indexer.dao.NodeQuery;
+import org.alfresco.consulting.indexer.dao.Shard;
 import org.alfresco.consulting.indexer.entities.NodeEntity;
-import freemarker.ext.beans.BeansWrapper;
-import freemarker.template.TemplateHashModel;
-import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.repo.domain.node.NodeDAO;
 import org.alfresco.repo.domain.qname.QNameDAO;
 import org.alfresco.service.cmr.repository.StoreRef;
 import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
 import org.alfresco.util.Pair;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.ibatis.session.ResultContext;
+import org.apache.ibatis.session.ResultHandler;
 import org.springframework.extensions.webscripts.*;
+import org.springframework.extensions.webscripts.json.JSONWriter;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -22,20 +26,40 @@ import java.util.*;
  * - Node content
  * - Node ACLs
  *
+ * Nodes are paged by (transaction, node id) and (ACL changeset, node id), with at most maxTxns
+ * and maxAclChangesets nodes per page; when a page is full, the id of its last node is returned
+ * (last_txn_node_id, last_acl_node_id) and must be sent back (lastTxnNodeId, lastAclNodeId) to
+ * resume in the middle of a transaction or ACL changeset.
+ *
+ * Nodes are written to the response while they are read from the database, transaction nodes first,
+ * so the store fields come first and the last_* fields follow the docs array. A node changed by both a
+ * transaction and an ACL changeset of the same page is only written once.
+ *
+ * Each node also carries its version, modified date and ACL changeset and, when it has content, the
+ * URL, size and mimetype of its cm:content; a content URL is never reused by the content store, so it
+ * can be compared as a content hash to tell whether the content has changed.
+ *
+ * maxTxns=0 (or maxAclChangesets=0) leaves transactions (or ACL changesets) out of the page, so that
+ * clients can keep draining one of them once the other has no more changes; its last_* fields are then
+ * returned as they were sent.
+ *
+ * shard=index/count only returns the nodes whose id modulo count is index, so that count
+ * clients can share the changes of a store, each one paging through its own shard with its own
+ * last_* fields.
+ *
  * Please check src/main/amp/config/alfresco/extension/templates/webscripts/com/findwise/alfresco/changes.get.desc.xml
  * to know more about the RestFul interface to invoke the WebScript
  *
  * List of pending activities (or TODOs)
  * - Move private/static logic into the IndexingService
- * - Using JSON libraries (or StringBuffer), render out the payload without passing through FreeMarker template
  * - Wrap (or Proxy) IndexingDaoImpl into an IndexingService, which (optionally) performs any object manipulation
  */
-public class NodeChangesWebScript extends DeclarativeWebScript {
+public class NodeChangesWebScript extends AbstractWebScript {
 
   protected static final Log logger = LogFactory.getLog(NodeChangesWebScript.class);
 
   @Override
-  protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
+  public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
 
     //Fetching request params
     Map<String, String> templateArgs = req.getServiceMatch().getTemplateVars();
@@ -43,20 +67,28 @@ public class NodeChangesWebScript extends DeclarativeWebScript {
     String storeProtocol = templateArgs.get("storeProtocol");
     String lastTxnIdString = req.getParameter("lastTxnId");
     String lastAclChangesetIdString = req.getParameter("lastAclChangesetId");
+    String lastTxnNodeIdString = req.getParameter("lastTxnNodeId");
+    String lastAclNodeIdString = req.getParameter("lastAclNodeId");
     String maxTxnsString = req.getParameter("maxTxns");
     String maxAclChangesetsString = req.getParameter("maxAclChangesets");
+    Shard shard = getShard(req);
 
     //Parsing parameters passed from the WebScript invocation
     Long lastTxnId = (lastTxnIdString == null ? null : Long.valueOf(lastTxnIdString));
     Long lastAclChangesetId = (lastAclChangesetIdString == null ? null : Long.valueOf(lastAclChangesetIdString));
+    Long lastTxnNodeId = (lastTxnNodeIdString == null ? null : Long.valueOf(lastTxnNodeIdString));
+    Long lastAclNodeId = (lastAclNodeIdString == null ? null : Long.valueOf(lastAclNodeIdString));
     Integer maxTxns = (maxTxnsString == null ? maxNodesPerTxns : Integer.valueOf(maxTxnsString));
     Integer maxAclChangesets = (maxAclChangesetsString == null ? maxNodesPerAcl : Integer.valueOf(maxAclChangesetsString));
 
     logger.debug(String.format("Invoking Changes Webscript, using the following params\n" +
         "lastTxnId: %s\n" +
+        "lastTxnNodeId: %s\n" +
         "lastAclChangesetId: %s\n" +
+        "lastAclNodeId: %s\n" +
+        "shard: %s\n" +
         "storeId: %s\n" +
-        "storeProtocol: %s\n", lastTxnId, lastAclChangesetId, storeId, storeProtocol));
+        "storeProtocol: %s\n", lastTxnId, lastTxnNodeId, lastAclChangesetId, lastAclNodeId, shard, storeId, storeProtocol));
 
     //Getting the Store ID on which the changes are requested
     Pair<Long,StoreRef> store = nodeDao.getStore(new StoreRef(storeProtocol, storeId));
@@ -64,53 +96,154 @@ public class NodeChangesWebScript extends DeclarativeWebScript {
     {
         throw new IllegalArgumentException("Invalid store reference: " + storeProtocol + "://" + storeId);
     }
-
-    Set<NodeEntity> nodes = new HashSet<NodeEntity>();
-    //Updating the last IDs being processed
-    //Depending on params passed to the request, results will be rendered out
     if (lastTxnId == null) {
       lastTxnId = new Long(0);
     }
-    List<NodeEntity> nodesFromTxns = indexingService.getNodesByTransactionId(store, lastTxnId, maxTxns);
-    if (nodesFromTxns != null && nodesFromTxns.size() > 0) {
-      nodes.addAll(nodesFromTxns);
-      lastTxnId = nodesFromTxns.get(nodesFromTxns.size()-1).getTransactionId();
-    }
-
     if (lastAclChangesetId == null) {
       lastAclChangesetId = new Long(0);
     }
-    List<NodeEntity> nodesFromAcls = indexingService.getNodesByAclChangesetId(store, lastAclChangesetId, maxAclChangesets);
-    if (nodesFromAcls != null && nodesFromAcls.size() > 0) {
-      nodes.addAll(nodesFromAcls);
-      lastAclChangesetId = nodesFromAcls.get(nodesFromAcls.size()-1).getAclChangesetId();
+
+    res.setContentType(Format.JSON.mimetype());
+    res.setContentEncoding("UTF-8");
+    JSONWriter json = new JSONWriter(res.getWriter());
+    json.startObject();
+    json.writeValue("store_id", storeId);
+    json.writeValue("store_protocol", storeProtocol);
+
+    json.startValue("docs");
+    json.startArray();
+
+    //Nodes are written while rows are read; the last node of each query updates the last IDs being processed
+    Set<Long> writtenNodeIds = new HashSet<Long>();
+    NodeWriter txnWriter = new NodeWriter(json, storeProtocol, storeId, writtenNodeIds);
+    if (maxTxns > 0) {
+      NodeQuery txnQuery = new NodeQuery(store, lastTxnId, maxTxns);
+      txnQuery.setLastNodeId(lastTxnNodeId);
+      txnQuery.setShard(shard);
+      indexingService.getNodesByTransactionId(txnQuery, txnWriter);
+    }
+    NodeEntity lastTxnNode = txnWriter.getLastNode();
+    if (lastTxnNode != null) {
+      lastTxnId = lastTxnNode.getTransactionId();
+      //A full page may stop in the middle of a transaction, which is then resumed from its last node
+      lastTxnNodeId = (txnWriter.getCount() >= maxTxns ? lastTxnNode.getId() : null);
+    }
+
+    NodeWriter aclWriter = new NodeWriter(json, storeProtocol, storeId, writtenNodeIds);
+    if (maxAclChangesets > 0) {
+      NodeQuery aclQuery = new NodeQuery(store, lastAclChangesetId, maxAclChangesets);
+      aclQuery.setLastNodeId(lastAclNodeId);
+      aclQuery.setShard(shard);
+      indexingService.getNodesByAclChangesetId(aclQuery, aclWriter);
+    }
+    NodeEntity lastAclNode = aclWriter.getLastNode();
+    if (lastAclNode != null) {
+      lastAclChangesetId = lastAclNode.getAclChangesetId();
+      lastAclNodeId = (aclWriter.getCount() >= maxAclChangesets ? lastAclNode.getId() : null);
+    }
+
+    json.endArray();
+    json.endValue();
+    json.writeValue("last_txn_id", String.valueOf(lastTxnId));
+    json.writeValue("last_acl_changeset_id", String.valueOf(lastAclChangesetId));
+    if (lastTxnNodeId != null) {
+      json.writeValue("last_txn_node_id", String.valueOf(lastTxnNodeId));
+    }
+    if (lastAclNodeId != null) {
+      json.writeValue("last_acl_node_id", String.valueOf(lastAclNodeId));
     }
+    json.endObject();
 
-    //Render them out
-    Map<String, Object> model = new HashMap<String, Object>(1, 1.0f);
-    model.put("qnameDao", qnameDao);
-    model.put("nsResolver", namespaceService);
-    model.put("nodes", nodes);
-    model.put("lastTxnId", lastTxnId);
-    model.put("lastAclChangesetId", lastAclChangesetId);
-    model.put("storeId", storeId);
-    model.put("storeProtocol", storeProtocol);
-    model.put("propertiesUrlTemplate", propertiesUrlTemplate);
+    logger.debug(String.format("Written %s nodes to the WebScript response", writtenNodeIds.size()));
+  }
 
-    //This allows to call the static method QName.createQName from the FTL template
+  /**
+   * @return the shard requested with the shard=index/count parameter, or null if none was requested
+   */
+  static Shard getShard(WebScriptRequest req) {
+    String shardString = req.getParameter("shard");
+    if (shardString == null || shardString.isEmpty()) {
+      return null;
+    }
     try {
-      BeansWrapper wrapper = BeansWrapper.getDefaultInstance();
-      TemplateHashModel staticModels = wrapper.getStaticModels();
-      TemplateHashModel qnameStatics = (TemplateHashModel) staticModels.get("org.alfresco.service.namespace.QName");
-      model.put("QName",qnameStatics);
-    } catch (Exception e) {
-      throw new AlfrescoRuntimeException(
-          "Cannot add BeansWrapper for static QName.createQName method to be used from a Freemarker template", e);
+      return Shard.valueOf(shardString);
+    } catch (IllegalArgumentException e) {
+      throw new WebScriptException(Status.STATUS_BAD_REQUEST, e.getMessage(), e);
     }
+  }
 
-    logger.debug(String.format("Attaching %s nodes to the WebScript template", nodes.size()));
+  /**
+   * Writes each node to the response as soon as MyBatis maps its row, unless a previous query of the
+   * same page has already written it
+   */
+  private class NodeWriter implements ResultHandler {
+    private final JSONWriter json;
+    private final String urlSuffix;
+    private final Set<Long> writtenNodeIds;
+    private final Map<Pair<String, String>, String> prefixedTypes = new HashMap<Pair<String, String>, String>();
+    private NodeEntity lastNode;
+    private int count;
 
-    return model;
+    NodeWriter(JSONWriter json, String storeProtocol, String storeId, Set<Long> writtenNodeIds) {
+      this.json = json;
+      this.urlSuffix = "/" + storeProtocol + "/" + storeId + "/";
+      this.writtenNodeIds = writtenNodeIds;
+    }
+
+    @Override
+    public void handleResult(ResultContext context) {
+      NodeEntity node = (NodeEntity) context.getResultObject();
+      lastNode = node;
+      count++;
+      if (writtenNodeIds.add(node.getId())) {
+        writeNode(node);
+      }
+    }
+
+    private void writeNode(NodeEntity node) {
+      try {
+        json.startObject();
+        json.writeValue("propertiesUrl", propertiesUrlTemplate + urlSuffix + node.getUuid());
+        json.writeValue("uuid", node.getUuid());
+        json.writeValue("type", getPrefixedType(node));
+        json.writeValue("deleted", node.getDeleted(qnameDao));
+        json.writeValue("version", String.valueOf(node.getVersion()));
+        writeOptionalValue("modified", node.getModified());
+        writeOptionalValue("aclChangesetId", node.getAclChangesetId());
+        if (node.getContentUrl() != null) {
+          json.writeValue("contentUrl", node.getContentUrl());
+          writeOptionalValue("contentSize", node.getContentSize());
+          writeOptionalValue("mimetype", node.getMimetype());
+        }
+        json.endObject();
+      } catch (IOException e) {
+        throw new WebScriptException("Unable to write the node changes", e);
+      }
+    }
+
+    private void writeOptionalValue(String name, Object value) throws IOException {
+      if (value != null) {
+        json.writeValue(name, String.valueOf(value));
+      }
+    }
+
+    private String getPrefixedType(NodeEntity node) {
+      Pair<String, String> type = new Pair<String, String>(node.getTypeNamespace(), node.getTypeName());
+      String prefixedType = prefixedTypes.get(type);
+      if (prefixedType == null) {
+        prefixedType = QName.createQName(node.getTypeNamespace(), node.getTypeName()).toPrefixString(namespaceService);
+        prefixedTypes.put(type, prefixedType);
+      }
+      return prefixedType;
+    }
+
+    NodeEntity getLastNode() {
+      return lastNode;
+    }
+
+    int getCount() {
+      return count;
+    }
   }
 
   private NamespaceService namespaceService;
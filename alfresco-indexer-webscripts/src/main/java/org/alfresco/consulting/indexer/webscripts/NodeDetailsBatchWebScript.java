@@ -0,0 +1,90 @@
+package org.alfresco.consulting.indexer.webscripts;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * Given a list of UUIDs (posted as {"uuids" : [...]}), renders out the same details of
+ * NodeDetailsWebScript for all of them, in one single response; nodes that do not exist (anymore)
+ * are not rendered out.
+ *
+ * Nodes are loaded in bulk (through NodeDAO.cacheNodes) before being processed one by one.
+ *
+ * Please check src/main/amp/config/alfresco/extension/templates/webscripts/org/alfresco/consulting/indexer/webscripts/details.post.desc.xml
+ * to know more about the RestFul interface to invoke the WebScript
+ */
+public class NodeDetailsBatchWebScript extends NodeDetailsWebScript {
+
+  protected static final Log logger = LogFactory.getLog(NodeDetailsBatchWebScript.class);
+
+  @Override
+  protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
+    //Parsing parameters passed from the WebScript invocation
+    Map<String, String> templateArgs = req.getServiceMatch().getTemplateVars();
+    String storeId = templateArgs.get("storeId");
+    String storeProtocol = templateArgs.get("storeProtocol");
+    List<NodeRef> nodeRefs = new ArrayList<NodeRef>();
+    for (String uuid : parseUuids(req)) {
+      nodeRefs.add(new NodeRef(storeProtocol, storeId, uuid));
+    }
+    if (nodeRefs.size() > maxBatchSize) {
+      throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+          String.format("Cannot fetch details of %s nodes, the limit is %s", nodeRefs.size(), maxBatchSize));
+    }
+
+    logger.debug(String.format("Invoking Batch Details Webscript for %s nodes", nodeRefs.size()));
+
+    //Bulk loading nodes, so that properties and aspects are then served from cache
+    nodeDao.cacheNodes(nodeRefs);
+
+    List<Map<String, Object>> nodes = new ArrayList<Map<String, Object>>(nodeRefs.size());
+    for (NodeRef nodeRef : nodeRefs) {
+      if (nodeService.exists(nodeRef)) {
+        Map<String, Object> details = getNodeDetails(nodeRef);
+        details.put("uuid", nodeRef.getId());
+        nodes.add(details);
+      } else {
+        logger.debug(String.format("Node %s does not exist, skipping it", nodeRef));
+      }
+    }
+
+    Map<String, Object> model = createModel();
+    model.put("nodes", nodes);
+    return model;
+  }
+
+  private List<String> parseUuids(WebScriptRequest req) {
+    try {
+      JSONObject body = new JSONObject(req.getContent().getContent());
+      JSONArray uuidsArray = body.getJSONArray("uuids");
+      List<String> uuids = new ArrayList<String>(uuidsArray.length());
+      for (int i = 0; i < uuidsArray.length(); i++) {
+        uuids.add(uuidsArray.getString(i));
+      }
+      return uuids;
+    } catch (JSONException e) {
+      throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Request body must be a {\"uuids\" : [...]} JSON object", e);
+    } catch (IOException e) {
+      throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Cannot read request body", e);
+    }
+  }
+
+  private int maxBatchSize = 100;
+
+  public void setMaxBatchSize(int maxBatchSize) {
+    this.maxBatchSize = maxBatchSize;
+  }
+}
@@ -2,8 +2,6 @@ package org.alfresco.consulting.indexer.webscripts;
 
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -11,16 +9,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.alfresco.consulting.indexer.dao.AclResolver;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.domain.node.NodeDAO;
-import org.alfresco.repo.domain.permissions.Acl;
-import org.alfresco.repo.domain.permissions.AclDAO;
-import org.alfresco.repo.security.permissions.AccessControlEntry;
 import org.alfresco.service.cmr.dictionary.DictionaryService;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.repository.Path;
-import org.alfresco.service.cmr.security.AccessStatus;
 import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
 import org.alfresco.util.Pair;
@@ -42,7 +37,6 @@ import com.google.gdata.util.common.base.StringUtil;
  * to know more about the RestFul interface to invoke the WebScript
  *
  * List of pending activities (or TODOs)
- * - Refactor recursive getAllAcls (direct recursion) . Evaluate the possibility to write a SQL statement for that
  * - Move private/static logic into the IndexingService (see notes on NodeChangesWebScript)
  * - Move the following methods (and related SQL statements) into IndexingDaoImpl
  * -- nodeService.getProperties
@@ -59,8 +53,6 @@ public class NodeDetailsWebScript extends DeclarativeWebScript {
 
   @Override
   protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
-    final List<String> readableAuthorities = new ArrayList<String>();
-
     //Parsing parameters passed from the WebScript invocation
     Map<String, String> templateArgs = req.getServiceMatch().getTemplateVars();
     String storeId = templateArgs.get("storeId");
@@ -70,6 +62,32 @@ public class NodeDetailsWebScript extends DeclarativeWebScript {
     logger.debug(String.format("Invoking ACLs Webscript, using the following params\n" +
         "nodeRef: %s\n", nodeRef));
 
+    Map<String, Object> model = createModel();
+    model.put("node", getNodeDetails(nodeRef));
+    return model;
+  }
+
+  /**
+   * Creates the model entries shared by all nodes being rendered out
+   */
+  protected Map<String, Object> createModel() {
+    Map<String, Object> model = new HashMap<String, Object>(8, 1.0f);
+    model.put("nsResolver", namespaceService);
+    model.put("contentUrlPrefix", contentUrlPrefix);
+    model.put("shareUrlPrefix", shareUrlPrefix);
+    model.put("thumbnailUrlPrefix", thumbnailUrlPrefix);
+    model.put("previewUrlPrefix", previewUrlPrefix);
+    return model;
+  }
+
+  /**
+   * Collects all details of a node: properties, aspects, path, readable authorities and URL paths
+   */
+  protected Map<String, Object> getNodeDetails(NodeRef nodeRef) {
+    String storeProtocol = nodeRef.getStoreRef().getProtocol();
+    String storeId = nodeRef.getStoreRef().getIdentifier();
+    String uuid = nodeRef.getId();
+
     //Processing properties
     Map<QName,Serializable> propertyMap = nodeService.getProperties(nodeRef);
     Map<String,Pair<String,String>> properties = toStringMap(propertyMap);
@@ -82,44 +100,25 @@ public class NodeDetailsWebScript extends DeclarativeWebScript {
     Long dbId = (Long)propertyMap.get(ContentModel.PROP_NODE_DBID);
     Long nodeAclId = nodeDao.getNodeAclId(dbId);
 
-    //Get also the inherited ones
-    List<Acl> acls = getAllAcls(nodeAclId);
-    //@TODO - avoid reverse by implementing direct recursion
-    Collections.reverse(acls);
+    //Authority names having a granted permission on the node, including the inherited ones
+    List<String> readableAuthorities = aclResolver.getReadableAuthorities(nodeAclId);
 
     //Getting path and siteName
     Path pathObj = nodeService.getPath(nodeRef);
     String path = pathObj.toPrefixString(namespaceService);
     String siteName = getSiteName(pathObj);
 
-    //Walk through ACLs and related ACEs, rendering out authority names having a granted permission on the node
-    for (Acl acl : acls) {
-      List<AccessControlEntry> aces = aclDao.getAccessControlList(acl.getId()).getEntries();
-      for(AccessControlEntry ace : aces) {
-        if (ace.getAccessStatus().equals(AccessStatus.ALLOWED)) {
-          if (!readableAuthorities.contains(ace.getAuthority())) {
-            readableAuthorities.add(ace.getAuthority());
-          }
-        }
-      }
-    }
-
-    Map<String, Object> model = new HashMap<String, Object>(1, 1.0f);
-    model.put("nsResolver", namespaceService);
-    model.put("readableAuthorities", readableAuthorities);
-    model.put("properties", properties);
-    model.put("aspects", aspects);
-    model.put("path", path);
-    model.put("contentUrlPrefix", contentUrlPrefix);
-    model.put("shareUrlPrefix", shareUrlPrefix);
-    model.put("thumbnailUrlPrefix", thumbnailUrlPrefix);
-    model.put("previewUrlPrefix", previewUrlPrefix);
+    Map<String, Object> details = new HashMap<String, Object>(16, 1.0f);
+    details.put("readableAuthorities", readableAuthorities);
+    details.put("properties", properties);
+    details.put("aspects", aspects);
+    details.put("path", path);
 
     //Calculating the contentUrlPath and adding it only if the contentType is child of cm:content
     boolean isContentAware = isContentAware(nodeRef);
     if (isContentAware) {
       String contentUrlPath = String.format("/api/node/%s/%s/%s/content",storeProtocol,storeId,uuid);
-      model.put("contentUrlPath", contentUrlPath);
+      details.put("contentUrlPath", contentUrlPath);
     }
 
     //Rendering out the (relative) URL path to Alfresco Share
@@ -128,7 +127,7 @@ public class NodeDetailsWebScript extends DeclarativeWebScript {
           "/page/site/%s/document-details?nodeRef=%s",
           siteName,
           nodeRef.toString());
-      model.put("shareUrlPath", shareUrlPath);
+      details.put("shareUrlPath", shareUrlPath);
     }
 
     String thumbnailUrlPath = String.format(
@@ -136,17 +135,16 @@ public class NodeDetailsWebScript extends DeclarativeWebScript {
         storeProtocol,
         storeId,
         uuid);
-    model.put("thumbnailUrlPath", thumbnailUrlPath);
+    details.put("thumbnailUrlPath", thumbnailUrlPath);
 
     String previewUrlPath = String.format(
         "/api/node/%s/%s/%s/content/thumbnails/webpreview",
         storeProtocol,
         storeId,
         uuid);
-    model.put("previewUrlPath", previewUrlPath);
-
+    details.put("previewUrlPath", previewUrlPath);
 
-    return model;
+    return details;
   }
 
   private String getSiteName(Path path) {
@@ -200,32 +198,15 @@ public class NodeDetailsWebScript extends DeclarativeWebScript {
     return ret;
   }
 
-  private List<Acl> getAllAcls(Long nodeAclId) {
-    logger.debug("getAllAcls from "+nodeAclId);
-    Acl acl = aclDao.getAcl(nodeAclId);
-    Long parentNodeAclId = acl.getInheritsFrom();
-    logger.debug("parent acl is  "+parentNodeAclId);
-    if (parentNodeAclId == null || !acl.getInherits()) {
-      List<Acl> ret = new ArrayList<Acl>();
-      ret.add(acl);
-      return ret;
-    } else {
-      List<Acl> inheritedAcls = getAllAcls(parentNodeAclId);
-      logger.debug("Current acl with id "+nodeAclId+" is "+acl);
-      inheritedAcls.add(acl);
-      return inheritedAcls;
-    }
-  }
-
   private DictionaryService dictionaryService;
-  private NamespaceService namespaceService;
-  private NodeService nodeService;
-  private NodeDAO nodeDao;
-  private AclDAO aclDao;
-  private String contentUrlPrefix;
-  private String shareUrlPrefix;
-  private String previewUrlPrefix;
-  private String thumbnailUrlPrefix;
+  protected NamespaceService namespaceService;
+  protected NodeService nodeService;
+  protected NodeDAO nodeDao;
+  private AclResolver aclResolver;
+  protected String contentUrlPrefix;
+  protected String shareUrlPrefix;
+  protected String previewUrlPrefix;
+  protected String thumbnailUrlPrefix;
 
   public void setDictionaryService(DictionaryService dictionaryService) {
     this.dictionaryService = dictionaryService;
@@ -239,8 +220,8 @@ public class NodeDetailsWebScript extends DeclarativeWebScript {
   public void setNodeDao(NodeDAO nodeDao) {
     this.nodeDao = nodeDao;
   }
-  public void setAclDao(AclDAO aclDao) {
-    this.aclDao = aclDao;
+  public void setAclResolver(AclResolver aclResolver) {
+    this.aclResolver = aclResolver;
   }
 
   public void setContentUrlPrefix(String contentUrlPrefix) {
@@ -0,0 +1,182 @@
+package org.alfresco.consulting.indexer.webscripts;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.consulting.indexer.dao.IndexingDaoImpl;
+import org.alfresco.consulting.indexer.dao.NodeQuery;
+import org.alfresco.consulting.indexer.dao.Shard;
+import org.alfresco.consulting.indexer.entities.NodeEntity;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.domain.qname.QNameDAO;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+import org.springframework.extensions.webscripts.json.JSONWriter;
+
+/**
+ * Renders out all the nodes of a store, paged by node id, as NDJSON (one JSON object per line), so that
+ * a client can bootstrap its index without walking the whole changes feed.
+ *
+ * Each line holds the fields returned for a node by NodeChangesWebScript (uuid, type, version, modified
+ * date, ACL changeset and content data), all read by the same query that pages through the nodes; same
+ * as for the changes feed, clients fetch the details of the nodes they need from NodeDetailsWebScript.
+ * Deleted nodes are not rendered out.
+ *
+ * The last line of a page holds no uuid: it carries the ids of the last transaction and ACL changeset
+ * (last_txn_id, last_acl_changeset_id), read before the nodes of the page, and, when the page is full,
+ * the id of its last node (last_node_id), to be sent back (lastNodeId) to get the next page. A client
+ * resumes the changes feed from the last_txn_id and last_acl_changeset_id of the first page, so that
+ * nodes changed while the snapshot was being exported are not missed.
+ *
+ * The last line also carries the id of the last node of the store (max_node_id), so that clients can
+ * split the snapshot into ranges of node ids and export them in parallel: toNodeId bounds the range
+ * (inclusive) that lastNodeId pages through.
+ *
+ * Same as NodeChangesWebScript, shard=index/count only exports the nodes of that shard, so that a
+ * client consuming one shard of the changes feed bootstraps from the same nodes.
+ *
+ * Please check src/main/amp/config/alfresco/extension/templates/webscripts/org/alfresco/consulting/indexer/webscripts/snapshot.get.desc.xml
+ * to know more about the RestFul interface to invoke the WebScript
+ */
+public class NodeSnapshotWebScript extends AbstractWebScript {
+
+  protected static final Log logger = LogFactory.getLog(NodeSnapshotWebScript.class);
+
+  static final String MIMETYPE_NDJSON = "application/x-ndjson";
+
+  @Override
+  public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
+    //Fetching request params
+    Map<String, String> templateArgs = req.getServiceMatch().getTemplateVars();
+    String storeId = templateArgs.get("storeId");
+    String storeProtocol = templateArgs.get("storeProtocol");
+    String lastNodeIdString = req.getParameter("lastNodeId");
+    String toNodeIdString = req.getParameter("toNodeId");
+    String maxNodesString = req.getParameter("maxNodes");
+    Shard shard = NodeChangesWebScript.getShard(req);
+
+    Long lastNodeId = (lastNodeIdString == null ? Long.valueOf(0) : Long.valueOf(lastNodeIdString));
+    Long toNodeId = (toNodeIdString == null ? null : Long.valueOf(toNodeIdString));
+    int maxNodes = (maxNodesString == null ? this.maxNodes : Integer.parseInt(maxNodesString));
+    if (maxNodes <= 0 || maxNodes > maxNodesLimit) {
+      throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+          String.format("Cannot export %s nodes per page, the limit is %s", maxNodes, maxNodesLimit));
+    }
+
+    logger.debug(String.format("Invoking Snapshot Webscript, using the following params\n" +
+        "lastNodeId: %s\n" +
+        "toNodeId: %s\n" +
+        "maxNodes: %s\n" +
+        "shard: %s\n" +
+        "storeId: %s\n" +
+        "storeProtocol: %s\n", lastNodeId, toNodeId, maxNodes, shard, storeId, storeProtocol));
+
+    Pair<Long,StoreRef> store = nodeDao.getStore(new StoreRef(storeProtocol, storeId));
+    if (store == null) {
+      throw new IllegalArgumentException("Invalid store reference: " + storeProtocol + "://" + storeId);
+    }
+
+    //Read before the nodes, so that resuming the changes feed from there cannot miss any node change
+    long lastTxnId = indexingService.getMaxTransactionId();
+    long lastAclChangesetId = indexingService.getMaxAclChangesetId();
+    long maxNodeId = indexingService.getMaxNodeId(store);
+
+    NodeQuery query = new NodeQuery(store, lastNodeId, maxNodes);
+    query.setMaxId(toNodeId);
+    query.setShard(shard);
+    List<NodeEntity> nodes = indexingService.getNodesByNodeId(query);
+
+    res.setContentType(MIMETYPE_NDJSON);
+    res.setContentEncoding("UTF-8");
+    Writer writer = res.getWriter();
+    int written = 0;
+    for (NodeEntity node : nodes) {
+      if (node.getDeleted(qnameDao)) {
+        continue;
+      }
+      writeNode(writer, node);
+      written++;
+    }
+
+    JSONWriter json = new JSONWriter(writer);
+    json.startObject();
+    json.writeValue("last_txn_id", String.valueOf(lastTxnId));
+    json.writeValue("last_acl_changeset_id", String.valueOf(lastAclChangesetId));
+    json.writeValue("max_node_id", String.valueOf(maxNodeId));
+    //A page that is not full is the last one
+    if (nodes.size() >= maxNodes) {
+      json.writeValue("last_node_id", String.valueOf(nodes.get(nodes.size() - 1).getId()));
+    }
+    json.endObject();
+    writer.write('\n');
+    writer.flush();
+
+    logger.debug(String.format("Written %s nodes to the WebScript response", written));
+  }
+
+  private void writeNode(Writer writer, NodeEntity node) throws IOException {
+    JSONWriter json = new JSONWriter(writer);
+    json.startObject();
+    json.writeValue("uuid", node.getUuid());
+    json.writeValue("type", QName.createQName(node.getTypeNamespace(), node.getTypeName()).toPrefixString(namespaceService));
+    json.writeValue("deleted", false);
+    json.writeValue("version", String.valueOf(node.getVersion()));
+    writeOptionalValue(json, "modified", node.getModified());
+    writeOptionalValue(json, "aclChangesetId", node.getAclChangesetId());
+    if (node.getContentUrl() != null) {
+      json.writeValue("contentUrl", node.getContentUrl());
+      writeOptionalValue(json, "contentSize", node.getContentSize());
+      writeOptionalValue(json, "mimetype", node.getMimetype());
+    }
+    json.endObject();
+    writer.write('\n');
+  }
+
+  private void writeOptionalValue(JSONWriter json, String name, Object value) throws IOException {
+    if (value != null) {
+      json.writeValue(name, String.valueOf(value));
+    }
+  }
+
+  private NamespaceService namespaceService;
+  private NodeDAO nodeDao;
+  private IndexingDaoImpl indexingService;
+  private QNameDAO qnameDao;
+  private int maxNodes = 500;
+  private int maxNodesLimit = 5000;
+
+  public void setNamespaceService(NamespaceService namespaceService) {
+    this.namespaceService = namespaceService;
+  }
+
+  public void setNodeDao(NodeDAO nodeDao) {
+    this.nodeDao = nodeDao;
+  }
+
+  public void setIndexingService(IndexingDaoImpl indexingService) {
+    this.indexingService = indexingService;
+  }
+
+  public void setQnameDao(QNameDAO qnameDao) {
+    this.qnameDao = qnameDao;
+  }
+
+  public void setMaxNodes(int maxNodes) {
+    this.maxNodes = maxNodes;
+  }
+
+  public void setMaxNodesLimit(int maxNodesLimit) {
+    this.maxNodesLimit = maxNodesLimit;
+  }
+}
@@ -1,8 +1,13 @@
 package org.alfresco.consulting.indexer.webscripts;
 
+import org.alfresco.model.ContentModel;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.repo.web.scripts.BaseWebScriptTest;
 import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.alfresco.service.cmr.security.AuthorityType;
+import org.alfresco.service.cmr.security.PersonService;
 import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.transaction.TransactionService;
 import org.json.JSONArray;
@@ -11,12 +16,16 @@ import org.springframework.extensions.webscripts.TestWebScriptServer.Response;
 
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.util.ApplicationContextHelper;
+import org.alfresco.util.PropertyMap;
 import org.apache.log4j.Logger;
 import org.json.JSONObject;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.springframework.context.ApplicationContext;
 
+import java.util.HashSet;
+import java.util.Set;
+
 public class NodeWebScriptTest extends BaseWebScriptTest {
 
     protected NodeService nodeService;
@@ -51,6 +60,15 @@ public class NodeWebScriptTest extends BaseWebScriptTest {
         JSONObject result = new JSONObject(response.getContentAsString());
         assertNodeChanges(result);
 
+        //Page through the same changes, one node at a time
+        assertKeysetPaging(changesUrl);
+
+        //Split the same changes into two shards
+        assertShards(changesUrl, result);
+
+        //Export (and assert) the whole store, a few nodes at a time
+        assertSnapshot(String.format("/node/snapshot/%s/%s", STORE_PROTOCOL, STORE_ID));
+
         //Find the uuid of a cm:content, not being deleted and that is part of an Alfresco Share site
         JSONArray docs = result.getJSONArray("docs");
         NodeRef nodeRef = null;
@@ -79,6 +97,17 @@ public class NodeWebScriptTest extends BaseWebScriptTest {
         result = new JSONObject(response.getContentAsString());
         assertNodeDetails(result, nodeRef.getId());
 
+        //Get (and assert) the same details through the batch endpoint
+        String batchDetailsUrl = String.format("/node/details/%s/%s",
+                STORE_PROTOCOL,
+                STORE_ID);
+        String batchBody = new JSONObject().put("uuids", new JSONArray().put(nodeRef.getId())).toString();
+        response = sendRequest(new TestWebScriptServer.PostRequest(batchDetailsUrl, batchBody, "application/json"), 200);
+        JSONArray batchDocs = new JSONObject(response.getContentAsString()).getJSONArray("docs");
+        assertEquals(1, batchDocs.length());
+        assertEquals(nodeRef.getId(), batchDocs.getJSONObject(0).get("uuid").toString());
+        assertNodeDetails(batchDocs.getJSONObject(0), nodeRef.getId());
+
         //Testing /auth/resolve Webscript
         response = sendRequest(new TestWebScriptServer.GetRequest("/auth/resolve/admin"), 200);
         JSONArray resultList = new JSONArray(response.getContentAsString());
@@ -87,6 +116,185 @@ public class NodeWebScriptTest extends BaseWebScriptTest {
         response = sendRequest(new TestWebScriptServer.GetRequest("/auth/resolve/"), 200);
         resultList = new JSONArray(response.getContentAsString());
         assertAdminAuthResolve(resultList);
+        assertAuthResolvePaging(resultList);
+        assertAuthResolveChanges();
+    }
+
+    private void assertKeysetPaging(String changesUrl) throws Exception {
+        String params = "lastTxnId=0&lastAclChangesetId=0";
+        long previousTxnId = 0;
+        long previousTxnNodeId = 0;
+        for (int page = 0; page < 5; page++) {
+            String url = changesUrl + "?" + params + "&maxTxns=1&maxAclChangesets=1";
+            Response response = sendRequest(new TestWebScriptServer.GetRequest(url), 200);
+            JSONObject result = new JSONObject(response.getContentAsString());
+            //At most one node from transactions, and one from ACL changesets
+            assertTrue(result.getJSONArray("docs").length() <= 2);
+
+            long lastTxnId = Long.parseLong(result.get("last_txn_id").toString());
+            long lastTxnNodeId = (result.has("last_txn_node_id") ? Long.parseLong(result.get("last_txn_node_id").toString()) : Long.MAX_VALUE);
+            //The (transaction, node id) cursor never moves backwards
+            assertTrue(lastTxnId > previousTxnId || (lastTxnId == previousTxnId && lastTxnNodeId >= previousTxnNodeId));
+            previousTxnId = lastTxnId;
+            previousTxnNodeId = lastTxnNodeId;
+
+            params = "lastTxnId=" + lastTxnId + "&lastAclChangesetId=" + result.get("last_acl_changeset_id");
+            if (result.has("last_txn_node_id")) {
+                params += "&lastTxnNodeId=" + result.get("last_txn_node_id");
+            }
+            if (result.has("last_acl_node_id")) {
+                params += "&lastAclNodeId=" + result.get("last_acl_node_id");
+            }
+        }
+    }
+
+    private void assertShards(String changesUrl, JSONObject unsharded) throws Exception {
+        Set<String> uuids = new HashSet<String>();
+        for (int shard = 0; shard < 2; shard++) {
+            Response response = sendRequest(new TestWebScriptServer.GetRequest(changesUrl + "?shard=" + shard + "/2"), 200);
+            JSONArray docs = new JSONObject(response.getContentAsString()).getJSONArray("docs");
+            for (int i = 0; i < docs.length(); i++) {
+                //Shards are disjoint
+                assertTrue(uuids.add(docs.getJSONObject(i).get("uuid").toString()));
+            }
+        }
+        //Unless the unsharded page is full, both shards hold all of its nodes
+        if (!unsharded.has("last_txn_node_id") && !unsharded.has("last_acl_node_id")) {
+            assertEquals(unsharded.getJSONArray("docs").length(), uuids.size());
+        }
+
+        sendRequest(new TestWebScriptServer.GetRequest(changesUrl + "?shard=2/2"), 400);
+    }
+
+    private void assertSnapshot(String snapshotUrl) throws Exception {
+        String url = snapshotUrl + "?maxNodes=5";
+        int nodes = 0;
+        for (int page = 0; page < 5 && url != null; page++) {
+            Response response = sendRequest(new TestWebScriptServer.GetRequest(url), 200);
+            String[] lines = response.getContentAsString().split("\n");
+            //At most maxNodes node lines, followed by the paging line
+            assertTrue(lines.length <= 6);
+            for (int i = 0; i < lines.length - 1; i++) {
+                JSONObject node = new JSONObject(lines[i]);
+                assertNotNull(node.get("uuid"));
+                assertEquals("false", node.get("deleted").toString());
+                assertTrue(Long.valueOf(node.get("version").toString()) >= 0);
+                assertNotNull(node.get("type"));
+                //Details are fetched from /node/details, same as for the changes feed
+                assertFalse(node.has("properties"));
+                nodes++;
+            }
+            JSONObject paging = new JSONObject(lines[lines.length - 1]);
+            assertFalse(paging.has("uuid"));
+            assertTrue(Long.parseLong(paging.get("last_txn_id").toString()) > 0);
+            assertTrue(Long.parseLong(paging.get("last_acl_changeset_id").toString()) > 0);
+            assertTrue(Long.parseLong(paging.get("max_node_id").toString()) > 0);
+            url = (paging.has("last_node_id") ? snapshotUrl + "?maxNodes=5&lastNodeId=" + paging.get("last_node_id") : null);
+        }
+        assertTrue(nodes > 0);
+
+        //A range of node ids ending before the first node is empty
+        Response response = sendRequest(new TestWebScriptServer.GetRequest(snapshotUrl + "?toNodeId=0"), 200);
+        String[] lines = response.getContentAsString().split("\n");
+        assertEquals(1, lines.length);
+        assertFalse(new JSONObject(lines[0]).has("last_node_id"));
+    }
+
+    private void assertAuthResolvePaging(JSONArray allUsers) throws Exception {
+        //Paging through all users one at a time returns them all, in the same order
+        for (int skipCount = 0; skipCount <= allUsers.length(); skipCount++) {
+            String url = "/auth/resolve/?skipCount=" + skipCount + "&maxItems=1";
+            JSONArray page = new JSONArray(sendRequest(new TestWebScriptServer.GetRequest(url), 200).getContentAsString());
+            if (skipCount == allUsers.length()) {
+                assertEquals(0, page.length());
+            } else {
+                assertEquals(1, page.length());
+                assertEquals(allUsers.getJSONObject(skipCount).get("username"), page.getJSONObject(0).get("username"));
+            }
+        }
+        sendRequest(new TestWebScriptServer.GetRequest("/auth/resolve/?maxItems=0"), 400);
+    }
+
+    private void assertAuthResolveChanges() throws Exception {
+        //Nothing changed after the last transaction: only reads the current position
+        String url = "/auth/resolve/?lastTxnId=" + Long.MAX_VALUE;
+        JSONObject result = new JSONObject(sendRequest(new TestWebScriptServer.GetRequest(url), 200).getContentAsString());
+        assertEquals(0, result.getJSONArray("users").length());
+        String lastTxnId = result.get("last_txn_id").toString();
+
+        final AuthorityService authorityService = (AuthorityService) getServer().getApplicationContext().getBean("AuthorityService");
+        final String group = transactionService.getRetryingTransactionHelper().doInTransaction(
+            new RetryingTransactionHelper.RetryingTransactionCallback<String>() {
+                @Override
+                public String execute() throws Throwable {
+                    String group = authorityService.createAuthority(AuthorityType.GROUP, "indexer_" + System.currentTimeMillis());
+                    authorityService.addAuthority(group, AuthenticationUtil.getAdminUserName());
+                    return group;
+                }
+            });
+
+        //Only the users whose authorities changed since then are returned
+        url = "/auth/resolve/?lastTxnId=" + lastTxnId;
+        result = new JSONObject(sendRequest(new TestWebScriptServer.GetRequest(url), 200).getContentAsString());
+        JSONArray users = result.getJSONArray("users");
+        assertEquals(1, users.length());
+        assertEquals(AuthenticationUtil.getAdminUserName(), users.getJSONObject(0).get("username"));
+        assertTrue(users.getJSONObject(0).getJSONArray("authorities").toString().contains(group));
+        assertTrue(Long.parseLong(result.get("last_txn_id").toString()) > Long.parseLong(lastTxnId));
+        assertAuthResolveClosures(authorityService, group);
+        assertAuthResolveDeletions(result.get("last_txn_id").toString());
+    }
+
+    private void assertAuthResolveDeletions(String lastTxnId) throws Exception {
+        final PersonService personService = (PersonService) getServer().getApplicationContext().getBean("PersonService");
+        final String username = "indexer_" + System.currentTimeMillis();
+        transactionService.getRetryingTransactionHelper().doInTransaction(
+            new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+                @Override
+                public Void execute() throws Throwable {
+                    PropertyMap properties = new PropertyMap();
+                    properties.put(ContentModel.PROP_USERNAME, username);
+                    personService.createPerson(properties);
+                    return null;
+                }
+            });
+        transactionService.getRetryingTransactionHelper().doInTransaction(
+            new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+                @Override
+                public Void execute() throws Throwable {
+                    personService.deletePerson(username);
+                    return null;
+                }
+            });
+
+        //The deleted person is reported by its username, which its node does not hold anymore
+        String url = "/auth/resolve/?lastTxnId=" + lastTxnId;
+        JSONObject result = new JSONObject(sendRequest(new TestWebScriptServer.GetRequest(url), 200).getContentAsString());
+        assertTrue(result.getJSONArray("deleted").toString().contains(username));
+        assertTrue(Long.parseLong(result.get("last_txn_id").toString()) > Long.parseLong(lastTxnId));
+    }
+
+    private void assertAuthResolveClosures(final AuthorityService authorityService, final String group) throws Exception {
+        //The closure of the group is cached by now: nesting it in a new group must drop it
+        final String parentGroup = transactionService.getRetryingTransactionHelper().doInTransaction(
+            new RetryingTransactionHelper.RetryingTransactionCallback<String>() {
+                @Override
+                public String execute() throws Throwable {
+                    String parentGroup = authorityService.createAuthority(AuthorityType.GROUP, "indexer_parent_" + System.currentTimeMillis());
+                    authorityService.addAuthority(parentGroup, group);
+                    return parentGroup;
+                }
+            });
+
+        String adminUserName = AuthenticationUtil.getAdminUserName();
+        Response response = sendRequest(new TestWebScriptServer.GetRequest("/auth/resolve/" + adminUserName), 200);
+        JSONArray auths = new JSONArray(response.getContentAsString()).getJSONObject(0).getJSONArray("authorities");
+        Set<String> resolved = new HashSet<String>();
+        for (int i = 0; i < auths.length(); i++) {
+            resolved.add(auths.get(i).toString());
+        }
+        assertTrue(resolved.contains(parentGroup));
+        assertEquals(new HashSet<String>(authorityService.getAuthoritiesForUser(adminUserName)), resolved);
     }
 
     private void assertAdminAuthResolve(JSONArray resultList) throws Exception {
@@ -137,6 +345,11 @@ public class NodeWebScriptTest extends BaseWebScriptTest {
             assertTrue(propertiesUrl.contains(uuid));
             String deleted = doc.get("deleted").toString();
             assertNotNull(new Boolean(deleted));
+            assertTrue(Long.valueOf(doc.get("version").toString()) >= 0);
+            if (doc.has("contentUrl")) {
+                assertNotNull(Long.valueOf(doc.get("contentSize").toString()));
+                assertNotNull(doc.get("mimetype"));
+            }
         }
     }
 
@@ -1,16 +1,36 @@
 package org.alfresco.consulting.manifold;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.alfresco.consulting.indexer.client.AlfrescoClient;
 import org.alfresco.consulting.indexer.client.AlfrescoDownException;
 import org.alfresco.consulting.indexer.client.AlfrescoResponse;
+import org.alfresco.consulting.indexer.client.AlfrescoSnapshot;
+import org.alfresco.consulting.indexer.client.AsyncAlfrescoClient;
+import org.alfresco.consulting.indexer.client.AsyncWebScriptsAlfrescoClient;
+import org.alfresco.consulting.indexer.client.ChangesCursor;
 import org.alfresco.consulting.indexer.client.WebScriptsAlfrescoClient;
+import org.apache.commons.io.IOUtils;
 import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
 import org.apache.manifoldcf.agents.interfaces.ServiceInterruption;
 import org.apache.manifoldcf.core.interfaces.ConfigParams;
@@ -23,28 +43,75 @@ import org.apache.manifoldcf.crawler.connectors.BaseRepositoryConnector;
 import org.apache.manifoldcf.crawler.interfaces.DocumentSpecification;
 import org.apache.manifoldcf.crawler.interfaces.IProcessActivity;
 import org.apache.manifoldcf.crawler.interfaces.ISeedingActivity;
+import org.apache.manifoldcf.crawler.interfaces.IVersionActivity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.gson.Gson;
-
 public class AlfrescoConnector extends BaseRepositoryConnector {
   private static final Logger logger = LoggerFactory.getLogger(AlfrescoConnector.class);
   private static final String ACTIVITY_FETCH = "fetch document";
   private static final String[] activitiesList = new String[]{ACTIVITY_FETCH};
   private AlfrescoClient alfrescoClient;
-  private final Gson gson = new Gson();
+  /**
+   * The same client as alfrescoClient when it is non-blocking, null otherwise
+   */
+  private AsyncAlfrescoClient asyncClient;
   private Boolean enableDocumentProcessing = Boolean.TRUE;
+  private int fetchThreads = DEFAULT_FETCH_THREADS;
+  private ExecutorService fetchExecutor;
+  private int prefetchPages = 0;
+  private boolean bootstrapSnapshot = false;
+  private int snapshotPartitions = 1;
+  private int checkpointPages = 0;
+  private PageSizeController pageSizeController = new PageSizeController(0, 0,
+          PAGE_TARGET_MILLIS, PAGE_TARGET_DOCUMENTS);
   
   private static final String CONTENT_URL_PROPERTY = "contentUrlPath";
+  private static final String UUID_PROPERTY = "uuid";
+  private static final String READABLE_AUTHORITIES_PROPERTY = "readableAuthorities";
+  private static final String DENY_TOKEN = "DEAD_AUTHORITY";
+
+  static final int DEFAULT_FETCH_THREADS = 4;
+  static final String CLIENT_TYPE_BLOCKING = "blocking";
+  static final String CLIENT_TYPE_ASYNC = "async";
+  static final int DEFAULT_MAX_PAGE_SIZE = 1000;
+  private static final long PAGE_TARGET_MILLIS = 5000L;
+  private static final int PAGE_TARGET_DOCUMENTS = 1000;
 
   @Override
   public int getConnectorModel() {
-    return MODEL_ALL; // We will always return all specified documents.
+    // The changes feed returns the nodes added, changed and deleted since the last seeding
+    return MODEL_ADD_CHANGE_DELETE;
   }
 
   void setClient(AlfrescoClient client) {
     alfrescoClient = client;
+    asyncClient = null;
+  }
+
+  void setClient(AsyncAlfrescoClient client) {
+    alfrescoClient = client;
+    asyncClient = client;
+  }
+
+  void setPrefetchPages(int prefetchPages) {
+    this.prefetchPages = prefetchPages;
+  }
+
+  void setPageSizeController(PageSizeController pageSizeController) {
+    this.pageSizeController = pageSizeController;
+  }
+
+  void setBootstrapSnapshot(boolean bootstrapSnapshot) {
+    this.bootstrapSnapshot = bootstrapSnapshot;
+  }
+
+  void setSnapshotPartitions(int snapshotPartitions) {
+    this.snapshotPartitions = snapshotPartitions;
+  }
+
+  void setCheckpointPages(int checkpointPages) {
+    this.checkpointPages = checkpointPages;
   }
 
   @Override
@@ -59,9 +126,39 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
     String username = getConfig(config, "username", null);
     String password = getConfig(config, "password", null);
     this.enableDocumentProcessing = new Boolean(getConfig(config, "enabledocumentprocessing", "false"));
+    int maxConnections = Integer.parseInt(getConfig(config, "maxconnections",
+            String.valueOf(WebScriptsAlfrescoClient.DEFAULT_MAX_CONNECTIONS)));
+    int maxConnectionsPerRoute = Integer.parseInt(getConfig(config, "maxconnectionsperroute",
+            String.valueOf(WebScriptsAlfrescoClient.DEFAULT_MAX_CONNECTIONS_PER_ROUTE)));
+    this.fetchThreads = Integer.parseInt(getConfig(config, "fetchthreads",
+            String.valueOf(DEFAULT_FETCH_THREADS)));
 
-    alfrescoClient = new WebScriptsAlfrescoClient(protocol, hostname, endpoint,
-            storeProtocol, storeId, username, password);
+    this.prefetchPages = Integer.parseInt(getConfig(config, "prefetchpages", "0"));
+    this.pageSizeController = new PageSizeController(
+            Integer.parseInt(getConfig(config, "pagesize", "0")),
+            Integer.parseInt(getConfig(config, "maxpagesize", String.valueOf(DEFAULT_MAX_PAGE_SIZE))),
+            PAGE_TARGET_MILLIS, PAGE_TARGET_DOCUMENTS);
+    this.bootstrapSnapshot = Boolean.parseBoolean(getConfig(config, "bootstrapsnapshot", "false"));
+    this.snapshotPartitions = Integer.parseInt(getConfig(config, "snapshotpartitions", "1"));
+    this.checkpointPages = Integer.parseInt(getConfig(config, "checkpointpages", "0"));
+    String clientType = getConfig(config, "clienttype", CLIENT_TYPE_BLOCKING);
+    // Each shard is crawled by its own job, hence with its own seed version
+    int shardIndex = Integer.parseInt(getConfig(config, "shardindex", "0"));
+    int shardCount = Integer.parseInt(getConfig(config, "shardcount", "1"));
+
+    if (CLIENT_TYPE_ASYNC.equals(clientType)) {
+      AsyncWebScriptsAlfrescoClient client = new AsyncWebScriptsAlfrescoClient(protocol, hostname, endpoint,
+              storeProtocol, storeId, username, password, maxConnections, maxConnectionsPerRoute);
+      client.setShard(shardIndex, shardCount);
+      alfrescoClient = client;
+      asyncClient = client;
+    } else {
+      WebScriptsAlfrescoClient client = new WebScriptsAlfrescoClient(protocol, hostname, endpoint,
+              storeProtocol, storeId, username, password, maxConnections, maxConnectionsPerRoute);
+      client.setShard(shardIndex, shardCount);
+      alfrescoClient = client;
+      asyncClient = null;
+    }
   }
 
   private static String getConfig(ConfigParams config,
@@ -81,6 +178,14 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
 
   @Override
   public void disconnect() throws ManifoldCFException {
+    if (alfrescoClient != null) {
+      alfrescoClient.close();
+      alfrescoClient = null;
+    }
+    if (fetchExecutor != null) {
+      fetchExecutor.shutdownNow();
+      fetchExecutor = null;
+    }
     super.disconnect();
   }
 
@@ -94,94 +199,446 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
     return 20;
   }
 
+  /**
+   * Seeds the nodes changed since the last seed version, and returns the position reached.
+   *
+   * A run ends after checkpointPages pages (when above 0), in any job mode: ManifoldCF records the
+   * returned position once the seeds are committed, and the next run resumes from there, so that a
+   * crash or a restart while catching up with a long changes feed only loses the current run.
+   *
+   * The rest of the feed then waits for the next run: the next reseed of a continuous job, or the next
+   * start of a once-only job, which stops once its seeds are processed. checkpointPages is therefore 0
+   * by default, so that a run keeps reading the whole feed unless checkpoints are asked for.
+   */
   @Override
   public String addSeedDocuments(ISeedingActivity activities, Specification spec,
                                               String lastSeedVersion, long seedTime, int jobMode) throws ManifoldCFException, ServiceInterruption {
     try {
-      long lastTransactionId = 0;
-      long lastAclChangesetId = 0;
-      
-      if(lastSeedVersion != null && !lastSeedVersion.isEmpty()){
-    	  StringTokenizer tokenizer = new StringTokenizer(lastSeedVersion,"|");
+      ChangesCursor cursor = ChangesCursor.START;
+      if (lastSeedVersion != null && !lastSeedVersion.isEmpty()) {
+        try {
+          cursor = ChangesCursor.valueOf(lastSeedVersion);
+        } catch (IllegalArgumentException e) {
+          logger.warn("Ignoring invalid seed version {}, starting over", lastSeedVersion);
+        }
+      }
 
-    	  if (tokenizer.countTokens() == 2) {
-    		  lastTransactionId = new Long(tokenizer.nextToken());
-    		  lastAclChangesetId = new Long(tokenizer.nextToken());
-    	  }
+      if (bootstrapSnapshot && (lastSeedVersion == null || lastSeedVersion.isEmpty())) {
+        cursor = addSnapshotSeedDocuments(activities);
       }
+
+      int maxPages = checkpointPages;
+      int pages = 0;
+      logger.info("Starting from {} (transaction id|acl changeset id)", cursor);
       
-      logger.info("Starting from transaction id: {} and acl changeset id: {}", lastTransactionId, lastAclChangesetId);
-      
-      long transactionIdsProcessed;
-      long aclChangesetsProcessed;
-      do {
-        final AlfrescoResponse response = alfrescoClient.fetchNodes(lastTransactionId, lastAclChangesetId);
-        int count = 0;
-        for (Map<String, Object> doc : response.getDocuments()) {
-          String json = gson.toJson(doc);
-          activities.addSeedDocument(json);
-          count++;
-        }
-        logger.info("Fetched and added {} seed documents", count);
+      if (prefetchPages > 0) {
+        ChangesPrefetcher prefetcher = new ChangesPrefetcher(alfrescoClient, pageSizeController,
+                cursor, prefetchPages);
+        prefetcher.start();
+        try {
+          AlfrescoResponse response;
+          while ((response = prefetcher.next()) != null) {
+            addSeedDocuments(activities, response);
 
-        transactionIdsProcessed = response.getLastTransactionId() - lastTransactionId;
-        aclChangesetsProcessed = response.getLastAclChangesetId() - lastAclChangesetId;
+            cursor = response.getCursor();
+            logger.info("cursor={}", cursor);
+            if (++pages == maxPages) {
+              // The pages prefetched meanwhile are read again by the next run
+              break;
+            }
+          }
+        } catch (InterruptedException e) {
+          throw new ManifoldCFException(e.getMessage(), e, ManifoldCFException.INTERRUPTED);
+        } finally {
+          prefetcher.close();
+        }
+      } else {
+        ChangesStreams streams = new ChangesStreams();
+        boolean advanced;
+        do {
+          long start = System.currentTimeMillis();
+          final AlfrescoResponse response = pageSizeController.fetchNodes(alfrescoClient, cursor, streams);
+          try {
+            // The page is streamed, it is only fully read once its seeds have all been added
+            int seeds = addSeedDocuments(activities, response);
+            pageSizeController.pageFetched(System.currentTimeMillis() - start, seeds);
 
-        lastTransactionId = response.getLastTransactionId();
-        lastAclChangesetId = response.getLastAclChangesetId();
+            ChangesCursor previous = cursor;
+            cursor = response.getCursor();
+            advanced = streams.pageFetched(previous, cursor);
+          } finally {
+            response.close();
+          }
 
-        logger.info("transaction_id={}, acl_changeset_id={}", lastTransactionId, lastAclChangesetId);
-      } while (transactionIdsProcessed > 0 && aclChangesetsProcessed > 0);
+          logger.info("cursor={}", cursor);
+        } while (advanced && ++pages != maxPages);
+      }
 
-      logger.info("Recording {} as last transaction id and {} as last changeset id", lastTransactionId, lastAclChangesetId);
-      return lastTransactionId + "|" + lastAclChangesetId;
+      logger.info("Recording {} as last transaction id|acl changeset id", cursor);
+      return cursor.toString();
     } catch (AlfrescoDownException e) {
       throw new ManifoldCFException(e);
     }
   }
 
+  /**
+   * Seeds all the nodes of the store from its snapshot, instead of walking the changes feed from its
+   * start.
+   *
+   * Once the first page is seeded, the nodes up to the last one of the store at that time are split
+   * into snapshotPartitions ranges exported in parallel; nodes created afterwards come with the
+   * changes feed.
+   *
+   * @return the position of the changes feed when the snapshot started, to catch up with the nodes
+   *         changed while it was being read
+   */
+  private ChangesCursor addSnapshotSeedDocuments(ISeedingActivity activities) throws ManifoldCFException {
+    logger.info("No seed version, seeding from a snapshot of the store");
+    ChangesCursor cursor = null;
+    Long lastNodeId = 0L;
+    Long maxNodeId = null;
+    int count = 0;
+    do {
+      AlfrescoSnapshot snapshot = alfrescoClient.fetchSnapshot(lastNodeId, 0);
+      try {
+        count += addSnapshotSeedDocuments(activities, snapshot.getDocuments());
+        if (cursor == null) {
+          cursor = snapshot.getCursor();
+          maxNodeId = snapshot.getMaxNodeId();
+        }
+        lastNodeId = snapshot.getLastNodeId();
+      } finally {
+        snapshot.close();
+      }
+      logger.info("Seeded {} documents from the snapshot, up to node {}", count, lastNodeId);
+      if (snapshotPartitions > 1 && lastNodeId != null && maxNodeId != null && maxNodeId > lastNodeId) {
+        count += addPartitionedSeedDocuments(activities, lastNodeId, maxNodeId);
+        logger.info("Seeded {} documents from the snapshot, up to node {}", count, maxNodeId);
+        break;
+      }
+    } while (lastNodeId != null);
+    return cursor;
+  }
+
+  private int addPartitionedSeedDocuments(ISeedingActivity activities, long fromNodeId, long toNodeId)
+      throws ManifoldCFException {
+    logger.info("Exporting nodes ({}, {}] in {} partitions", fromNodeId, toNodeId, snapshotPartitions);
+    SnapshotPartitions partitions = new SnapshotPartitions(alfrescoClient, fromNodeId, toNodeId,
+            snapshotPartitions);
+    partitions.start();
+    try {
+      int count = 0;
+      List<Map<String, Object>> documents;
+      while ((documents = partitions.next()) != null) {
+        count += addSnapshotSeedDocuments(activities, documents);
+      }
+      return count;
+    } catch (InterruptedException e) {
+      throw new ManifoldCFException(e.getMessage(), e, ManifoldCFException.INTERRUPTED);
+    } finally {
+      partitions.close();
+    }
+  }
+
+  private int addSnapshotSeedDocuments(ISeedingActivity activities, Iterable<Map<String, Object>> documents)
+      throws ManifoldCFException {
+    int count = 0;
+    for (Map<String, Object> doc : documents) {
+      activities.addSeedDocument(SeedIdentifier.valueOf(doc));
+      count++;
+    }
+    return count;
+  }
+
+  private int addSeedDocuments(ISeedingActivity activities, AlfrescoResponse response)
+          throws ManifoldCFException {
+    // ACL changesets come fanned out to the nodes using the changed ACLs, which are ingested again
+    // with their new readable authorities
+    int count = 0;
+    for (Map<String, Object> doc : response.getDocuments()) {
+      activities.addSeedDocument(SeedIdentifier.valueOf(doc));
+      count++;
+    }
+    logger.info("Fetched and added {} seed documents", count);
+    return count;
+  }
+
+  /**
+   * Versions are the state of the nodes seeded along with their uuid (version, ACL changeset and
+   * content hash, see {@link SeedIdentifier}), so that no request is sent to Alfresco: a node seeded
+   * again without having changed keeps its version, and is neither fetched nor ingested again.
+   */
+  @Override
+  public String[] getDocumentVersions(String[] documentIdentifiers, String[] oldVersions,
+                                      IVersionActivity activities, DocumentSpecification spec,
+                                      int jobMode, boolean usesDefaultAuthority)
+          throws ManifoldCFException, ServiceInterruption {
+    String[] versions = new String[documentIdentifiers.length];
+    for (int i = 0; i < documentIdentifiers.length; i++) {
+      versions[i] = SeedIdentifier.getVersion(documentIdentifiers[i]);
+    }
+    return versions;
+  }
+
+  /**
+   * Fetches the metadata of the nodes to ingest in one batch, then ingests them with the uuid as
+   * identifier and URI, so that each version of a node replaces the previous one. Deleted nodes, and
+   * nodes removed since they were seeded, are deleted.
+   */
   @Override
-  @SuppressWarnings("unchecked")
   public void processDocuments(String[] documentIdentifiers, String[] versions,
                                IProcessActivity activities, DocumentSpecification spec,
                                boolean[] scanOnly, int jobMode) throws ManifoldCFException,
           ServiceInterruption {
-    for (String doc : documentIdentifiers) {
-      Map<String, Object> map = gson.fromJson(doc, Map.class);
-      RepositoryDocument rd = new RepositoryDocument();
-      String uuid = map.get("uuid").toString();
-      rd.setFileName(uuid);
-      for (Entry<String, Object> e : map.entrySet()) {
-        rd.addField(e.getKey(), e.getValue().toString());
+    List<String> identifiers = new ArrayList<String>(documentIdentifiers.length);
+    List<String> uuidsToFetch = new ArrayList<String>();
+    for (int i = 0; i < documentIdentifiers.length; i++) {
+      if (scanOnly != null && scanOnly[i]) {
+        // Its version did not change since it was last ingested
+        continue;
+      }
+      String identifier = documentIdentifiers[i];
+      identifiers.add(identifier);
+      if (!SeedIdentifier.isDeleted(identifier)) {
+        uuidsToFetch.add(SeedIdentifier.getUuid(identifier));
       }
+    }
 
-      if ((Boolean) map.get("deleted")) {
-        activities.deleteDocument(uuid);
-      } else {
+    Map<String, Map<String, Object>> metadata = fetchMetadata(uuidsToFetch);
+
+    // Contents are all downloaded at the same time, while documents are ingested in order; they are
+    // downloaded even when only the ACL changed, since an ingest replaces the whole document
+    Map<String, Future<InputStream>> contents = new HashMap<String, Future<InputStream>>();
+    try {
+      fetchContents(metadata, contents);
+
+      for (String identifier : identifiers) {
+        String uuid = SeedIdentifier.getUuid(identifier);
+        Map<String, Object> details = metadata.get(uuid);
+        if (details == null) {
+          // Deleted, or removed since it was seeded
+          activities.deleteDocument(uuid);
+          continue;
+        }
+        RepositoryDocument rd = new RepositoryDocument();
+        rd.setFileName(uuid);
+        rd.addField(UUID_PROPERTY, uuid);
         if (this.enableDocumentProcessing) {
-          processMetaData(rd,uuid);
+          processMetaData(rd, uuid, details, contents.get(uuid));
+        }
+        Object readableAuthorities = details.get(READABLE_AUTHORITIES_PROPERTY);
+        if (readableAuthorities instanceof List) {
+          setSecurity(rd, (List<?>) readableAuthorities);
         }
+        String version = SeedIdentifier.getVersion(identifier);
         try {
-        	logger.info("Ingesting with id: {}, URI {} and rd {}", String.valueOf(uuid), uuid, rd.getFileName());
-			activities.ingestDocumentWithException(String.valueOf(uuid), "", uuid, rd);
-		} catch (IOException e) {
-			throw new ManifoldCFException(
-					"Error Ingesting Document with ID " + String.valueOf(uuid), e);
-		}
+          logger.info("Ingesting with id: {}, version {} and rd {}", uuid, version, rd.getFileName());
+          activities.ingestDocumentWithException(uuid, version, uuid, rd);
+        } catch (IOException e) {
+          throw new ManifoldCFException(
+                  "Error Ingesting Document with ID " + String.valueOf(uuid), e);
+        } finally {
+          closeBinary(rd);
+        }
       }
+    } finally {
+      discardContents(contents);
+    }
+  }
+
+  /**
+   * @return the metadata of the given nodes, fetched without blocking when the client is non-blocking
+   */
+  private Map<String, Map<String, Object>> fetchMetadata(List<String> uuids) throws ManifoldCFException {
+    if (uuids.isEmpty()) {
+      return Collections.emptyMap();
     }
+    if (asyncClient != null) {
+      return await(asyncClient.fetchMetadataBatchAsync(uuids), "Unable to fetch the metadata of nodes");
+    }
+    return alfrescoClient.fetchMetadataBatch(uuids);
   }
 
-  private void processMetaData(RepositoryDocument rd, String uuid) throws ManifoldCFException {
-    Map<String,Object> properties = alfrescoClient.fetchMetadata(uuid);
+  /**
+   * Starts downloading the contents of the given nodes, without blocking when the client is
+   * non-blocking, and with the fetch threads otherwise
+   */
+  private void fetchContents(Map<String, Map<String, Object>> metadata,
+                             Map<String, Future<InputStream>> contents) {
+    if (!this.enableDocumentProcessing) {
+      return;
+    }
+    for (Map.Entry<String, Map<String, Object>> entry : metadata.entrySet()) {
+      String contentUrlPath = (String) entry.getValue().get(CONTENT_URL_PROPERTY);
+      if (contentUrlPath != null && !contentUrlPath.isEmpty()) {
+        contents.put(entry.getKey(), asyncClient != null
+                ? asyncClient.fetchContentAsync(contentUrlPath)
+                : getFetchExecutor().submit(new ContentFetcher(contentUrlPath)));
+      }
+    }
+  }
+
+  private void processMetaData(RepositoryDocument rd, String uuid,
+                               Map<String, Object> properties,
+                               Future<InputStream> content) throws ManifoldCFException {
     for(String property : properties.keySet()) {
       Object propertyValue = properties.get(property);
       rd.addField(property,propertyValue.toString());
     }
-    
-    String contentUrlPath = (String) properties.get(CONTENT_URL_PROPERTY);
-    if(contentUrlPath != null && !contentUrlPath.isEmpty()){
-    	rd.setBinary(alfrescoClient.fetchContent(contentUrlPath), 0L);
+
+    if (content != null) {
+      InputStream in = await(content, "Unable to fetch the content of node " + uuid);
+      try {
+        rd.setBinary(in, getLength(in));
+      } catch (IOException e) {
+        IOUtils.closeQuietly(in);
+        throw new ManifoldCFException("Unable to read the content of node " + uuid, e);
+      }
+    }
+  }
+
+  /**
+   * Both clients spool contents to temporary files, so their length is known before they are read
+   */
+  private static long getLength(InputStream content) throws IOException {
+    if (!(content instanceof FileInputStream)) {
+      throw new IOException("The content has not been spooled");
+    }
+    return ((FileInputStream) content).getChannel().size();
+  }
+
+  /**
+   * Only the authorities allowed to read the node may see the document; when they change (e.g. an
+   * ACL it inherits from changed), the node comes with the changes feed and is ingested again
+   */
+  private static void setSecurity(RepositoryDocument rd, List<?> readableAuthorities) {
+    String[] acl = new String[readableAuthorities.size()];
+    for (int i = 0; i < acl.length; i++) {
+      acl[i] = readableAuthorities.get(i).toString();
+    }
+    rd.setSecurityACL(RepositoryDocument.SECURITY_TYPE_DOCUMENT, acl);
+    rd.setSecurityDenyACL(RepositoryDocument.SECURITY_TYPE_DOCUMENT, new String[]{DENY_TOKEN});
+  }
+
+  private static <T> T await(Future<T> future, String failure) throws ManifoldCFException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ManifoldCFException(e.getMessage(), e, ManifoldCFException.INTERRUPTED);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new ManifoldCFException(failure, cause);
+    }
+  }
+
+  private void discardContents(Map<String, Future<InputStream>> contents) {
+    for (Future<InputStream> content : contents.values()) {
+      if (content.cancel(true)) {
+        continue;
+      }
+      try {
+        // Deletes the spooled content, unless it was already closed once ingested
+        IOUtils.closeQuietly(content.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        // Already reported while ingesting, or the document was never reached
+        logger.debug("Content fetch failed", e.getCause());
+      }
+    }
+  }
+
+  private synchronized ExecutorService getFetchExecutor() {
+    if (fetchExecutor == null) {
+      fetchExecutor = Executors.newFixedThreadPool(fetchThreads, new FetchThreadFactory());
+    }
+    return fetchExecutor;
+  }
+
+  /**
+   * Downloads a content to a temporary file, so that the pooled connection is released as soon as
+   * possible and the content length is known when the document is ingested.
+   */
+  private class ContentFetcher implements Callable<InputStream> {
+    private final String contentUrlPath;
+
+    ContentFetcher(String contentUrlPath) {
+      this.contentUrlPath = contentUrlPath;
+    }
+
+    @Override
+    public InputStream call() throws IOException {
+      InputStream in = alfrescoClient.fetchContent(contentUrlPath);
+      File file = null;
+      InputStream spooled = null;
+      try {
+        file = File.createTempFile("alfresco-content", ".tmp");
+        OutputStream out = new FileOutputStream(file);
+        try {
+          IOUtils.copy(in, out);
+        } finally {
+          out.close();
+        }
+        if (Thread.currentThread().isInterrupted()) {
+          throw new InterruptedIOException("Interrupted while spooling " + contentUrlPath);
+        }
+        spooled = new SpooledContent(file);
+      } finally {
+        IOUtils.closeQuietly(in);
+        if (spooled == null && file != null) {
+          file.delete();
+        }
+      }
+      return spooled;
+    }
+  }
+
+  /**
+   * A content spooled to a temporary file, which is deleted once the stream is closed
+   */
+  private static class SpooledContent extends FileInputStream {
+    private final File file;
+
+    SpooledContent(File file) throws FileNotFoundException {
+      super(file);
+      this.file = file;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (file.exists() && !file.delete()) {
+          logger.warn("Unable to delete the spooled content {}", file);
+        }
+      }
+    }
+  }
+
+  private static class FetchThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "alfresco-content-fetcher-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+  private void closeBinary(RepositoryDocument rd) {
+    InputStream binary = rd.getBinaryStream();
+    if (binary != null) {
+      try {
+        binary.close();
+      } catch (IOException e) {
+        logger.debug("Failed to close the content stream", e);
+      }
     }
   }
 
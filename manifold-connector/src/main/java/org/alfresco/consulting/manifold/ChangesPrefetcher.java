@@ -0,0 +1,124 @@
+package org.alfresco.consulting.manifold;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.alfresco.consulting.indexer.client.AlfrescoClient;
+import org.alfresco.consulting.indexer.client.AlfrescoResponse;
+import org.alfresco.consulting.indexer.client.ChangesCursor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches the pages of the changes feed in a background thread, while the previous pages are
+ * being seeded; at most maxPages pages are kept in memory, waiting to be seeded.
+ *
+ * Pages are fully read before being queued, so that no HTTP connection is held while they wait.
+ */
+class ChangesPrefetcher {
+  private static final Logger logger = LoggerFactory.getLogger(ChangesPrefetcher.class);
+
+  private final AlfrescoClient alfrescoClient;
+  private final PageSizeController pageSizeController;
+  private final BlockingQueue<Page> pages;
+  private final ChangesStreams streams = new ChangesStreams();
+  private final Thread thread;
+  private ChangesCursor cursor;
+  private boolean done;
+
+  ChangesPrefetcher(AlfrescoClient alfrescoClient, PageSizeController pageSizeController,
+                    ChangesCursor cursor, int maxPages) {
+    this.alfrescoClient = alfrescoClient;
+    this.pageSizeController = pageSizeController;
+    this.cursor = cursor;
+    this.pages = new ArrayBlockingQueue<Page>(maxPages);
+    this.thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        fetchPages();
+      }
+    }, "alfresco-changes-prefetcher");
+    this.thread.setDaemon(true);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  /**
+   * @return the next page of changes, or null once the feed is exhausted
+   * @throws RuntimeException
+   *         the exception thrown while fetching the page, if any
+   */
+  AlfrescoResponse next() throws InterruptedException {
+    if (done) {
+      return null;
+    }
+    Page page = pages.take();
+    if (page.failure != null) {
+      done = true;
+      throw page.failure;
+    }
+    if (page.response == null) {
+      done = true;
+    }
+    return page.response;
+  }
+
+  /**
+   * Stops fetching pages; pages already fetched are discarded.
+   */
+  void close() {
+    thread.interrupt();
+    pages.clear();
+  }
+
+  private void fetchPages() {
+    try {
+      boolean advanced;
+      do {
+        AlfrescoResponse response = fetchPage();
+        pages.put(new Page(response, null));
+
+        ChangesCursor previous = cursor;
+        cursor = response.getCursor();
+        advanced = streams.pageFetched(previous, cursor);
+        logger.debug("Prefetched page up to {}", cursor);
+      } while (advanced);
+      pages.put(new Page(null, null));
+    } catch (InterruptedException e) {
+      // Closed by the seeding thread
+    } catch (RuntimeException e) {
+      try {
+        pages.put(new Page(null, e));
+      } catch (InterruptedException interrupted) {
+        logger.debug("Prefetching closed, discarding failure", e);
+      }
+    }
+  }
+
+  private AlfrescoResponse fetchPage() {
+    long start = System.currentTimeMillis();
+    AlfrescoResponse response = pageSizeController.fetchNodes(alfrescoClient, cursor, streams);
+    try {
+      List<Map<String, Object>> documents = response.getDocumentList();
+      pageSizeController.pageFetched(System.currentTimeMillis() - start, documents.size());
+      return new AlfrescoResponse(response.getCursor(), response.getStoreId(), response.getStoreProtocol(),
+              documents);
+    } finally {
+      response.close();
+    }
+  }
+
+  private static class Page {
+    private final AlfrescoResponse response;
+    private final RuntimeException failure;
+
+    Page(AlfrescoResponse response, RuntimeException failure) {
+      this.response = response;
+      this.failure = failure;
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package org.alfresco.consulting.manifold;
+
+import org.alfresco.consulting.indexer.client.ChangesCursor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks, during one seeding run, which of the two streams of the changes feed (transactions and ACL
+ * changesets) still have changes to return. Each stream is drained on its own: as soon as a page does
+ * not move its part of the cursor, it is not requested anymore, while the other one keeps being paged
+ * until it is drained too.
+ */
+class ChangesStreams {
+  private static final Logger logger = LoggerFactory.getLogger(ChangesStreams.class);
+
+  private boolean transactionsDrained;
+  private boolean aclChangesetsDrained;
+
+  /**
+   * @param previous
+   *        the cursor the page was requested from
+   * @param current
+   *        the cursor returned with the page
+   * @return true while at least one of the streams has not been drained
+   */
+  boolean pageFetched(ChangesCursor previous, ChangesCursor current) {
+    if (!transactionsDrained && !transactionsAdvanced(previous, current)) {
+      logger.debug("Transactions drained at {}", current);
+      transactionsDrained = true;
+    }
+    if (!aclChangesetsDrained && !aclChangesetsAdvanced(previous, current)) {
+      logger.debug("ACL changesets drained at {}", current);
+      aclChangesetsDrained = true;
+    }
+    return !(transactionsDrained && aclChangesetsDrained);
+  }
+
+  boolean isTransactionsDrained() {
+    return transactionsDrained;
+  }
+
+  boolean isAclChangesetsDrained() {
+    return aclChangesetsDrained;
+  }
+
+  /**
+   * A stream moved forward when its last transaction (or ACL changeset) grew, or when it moved within
+   * a transaction (or ACL changeset) larger than a page.
+   */
+  static boolean transactionsAdvanced(ChangesCursor previous, ChangesCursor current) {
+    return current.getLastTransactionId() > previous.getLastTransactionId()
+        || !sameNode(current.getLastTransactionNodeId(), previous.getLastTransactionNodeId());
+  }
+
+  static boolean aclChangesetsAdvanced(ChangesCursor previous, ChangesCursor current) {
+    return current.getLastAclChangesetId() > previous.getLastAclChangesetId()
+        || !sameNode(current.getLastAclNodeId(), previous.getLastAclNodeId());
+  }
+
+  private static boolean sameNode(Long nodeId, Long otherNodeId) {
+    return nodeId == null ? otherNodeId == null : nodeId.equals(otherNodeId);
+  }
+}
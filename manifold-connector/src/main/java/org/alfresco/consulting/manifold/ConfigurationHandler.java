@@ -27,6 +27,18 @@ public class ConfigurationHandler {
   private static final String PARAM_STORE_ID = "storeid";
   private static final String PARAM_USERNAME = "username";
   private static final String PARAM_PASSWORD = "password";
+  private static final String PARAM_MAX_CONNECTIONS = "maxconnections";
+  private static final String PARAM_MAX_CONNECTIONS_PER_ROUTE = "maxconnectionsperroute";
+  private static final String PARAM_FETCH_THREADS = "fetchthreads";
+  private static final String PARAM_CLIENT_TYPE = "clienttype";
+  private static final String PARAM_PREFETCH_PAGES = "prefetchpages";
+  private static final String PARAM_PAGE_SIZE = "pagesize";
+  private static final String PARAM_MAX_PAGE_SIZE = "maxpagesize";
+  private static final String PARAM_BOOTSTRAP_SNAPSHOT = "bootstrapsnapshot";
+  private static final String PARAM_SNAPSHOT_PARTITIONS = "snapshotpartitions";
+  private static final String PARAM_SHARD_INDEX = "shardindex";
+  private static final String PARAM_SHARD_COUNT = "shardcount";
+  private static final String PARAM_CHECKPOINT_PAGES = "checkpointpages";
 
   private static final String EDIT_CONFIG_HEADER = "editConfiguration.js";
   private static final String EDIT_CONFIG_SERVER = "editConfiguration_Server.html";
@@ -42,6 +54,18 @@ public class ConfigurationHandler {
     DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_STORE_ID, "SpacesStore");
     DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_USERNAME, "");
     DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_PASSWORD, "");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_MAX_CONNECTIONS, "10");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_MAX_CONNECTIONS_PER_ROUTE, "10");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_FETCH_THREADS, "4");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_CLIENT_TYPE, "blocking");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_PREFETCH_PAGES, "0");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_PAGE_SIZE, "0");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_MAX_PAGE_SIZE, "1000");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_BOOTSTRAP_SNAPSHOT, "false");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_SNAPSHOT_PARTITIONS, "1");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_SHARD_INDEX, "0");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_SHARD_COUNT, "1");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_CHECKPOINT_PAGES, "0");
   }
 
   private ConfigurationHandler() {
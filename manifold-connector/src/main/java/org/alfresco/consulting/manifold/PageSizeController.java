@@ -0,0 +1,85 @@
+package org.alfresco.consulting.manifold;
+
+import org.alfresco.consulting.indexer.client.AlfrescoClient;
+import org.alfresco.consulting.indexer.client.AlfrescoResponse;
+import org.alfresco.consulting.indexer.client.ChangesCursor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjusts the number of transactions and ACL changesets requested per page of the changes feed:
+ * the page size doubles while pages come back fast and small, and halves as soon as a page is
+ * slow or large, always staying between 1 and the configured maximum.
+ *
+ * When the initial page size is not positive, the page sizes configured on the Alfresco side are
+ * used and never adjusted.
+ */
+class PageSizeController {
+  private static final Logger logger = LoggerFactory.getLogger(PageSizeController.class);
+
+  private final int maxPageSize;
+  private final long targetMillis;
+  private final int targetDocuments;
+  private int pageSize;
+
+  /**
+   * @param initialPageSize
+   *        the page size of the first request; 0 to use the Alfresco defaults
+   * @param maxPageSize
+   *        the largest page size ever requested
+   * @param targetMillis
+   *        pages slower than this shrink the page size
+   * @param targetDocuments
+   *        pages with more documents than this shrink the page size
+   */
+  PageSizeController(int initialPageSize, int maxPageSize, long targetMillis, int targetDocuments) {
+    this.maxPageSize = Math.max(1, maxPageSize);
+    this.targetMillis = targetMillis;
+    this.targetDocuments = targetDocuments;
+    this.pageSize = Math.min(initialPageSize, this.maxPageSize);
+  }
+
+  int getPageSize() {
+    return pageSize;
+  }
+
+  boolean isEnabled() {
+    return pageSize > 0;
+  }
+
+  /**
+   * @param streams
+   *        the streams already drained are not requested
+   */
+  AlfrescoResponse fetchNodes(AlfrescoClient alfrescoClient, ChangesCursor cursor, ChangesStreams streams) {
+    int maxTransactions = streams.isTransactionsDrained() ? AlfrescoClient.SKIP : pageSize;
+    int maxAclChangesets = streams.isAclChangesetsDrained() ? AlfrescoClient.SKIP : pageSize;
+    if (!isEnabled() && maxTransactions == pageSize && maxAclChangesets == pageSize
+        && cursor.getLastTransactionNodeId() == null && cursor.getLastAclNodeId() == null) {
+      return alfrescoClient.fetchNodes(cursor.getLastTransactionId(), cursor.getLastAclChangesetId());
+    }
+    return alfrescoClient.fetchNodes(cursor, maxTransactions, maxAclChangesets);
+  }
+
+  /**
+   * @param elapsedMillis
+   *        the time taken to fetch the page and read it until its last document
+   * @param documents
+   *        the number of documents in the page
+   */
+  void pageFetched(long elapsedMillis, int documents) {
+    if (!isEnabled()) {
+      return;
+    }
+    int previous = pageSize;
+    if (elapsedMillis > targetMillis || documents > targetDocuments) {
+      pageSize = Math.max(1, pageSize / 2);
+    } else if (elapsedMillis < targetMillis / 2 && documents < targetDocuments / 2) {
+      pageSize = (int) Math.min((long) maxPageSize, pageSize * 2L);
+    }
+    if (pageSize != previous) {
+      logger.debug("Page took {} ms for {} documents, page size changed from {} to {}",
+              elapsedMillis, documents, previous, pageSize);
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package org.alfresco.consulting.manifold;
+
+import java.util.Map;
+
+import org.alfresco.consulting.indexer.client.AlfrescoNodeChange;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+/**
+ * The identifier a node is seeded with: its uuid, followed by the state the changes feed (or the
+ * snapshot) returned for it, i.e. "uuid|version|aclChangesetId|contentHash", or "uuid|deleted".
+ *
+ * ManifoldCF hands nothing but identifiers over from seeding to versioning, so the state travels with
+ * the identifier, and documents are versioned from it without calling Alfresco: a node seeded again
+ * without having changed gets the same identifier and version, and is neither fetched nor ingested
+ * again. Nodes returned by older webscripts, without any state, are versioned with an empty version,
+ * so that they are always ingested.
+ */
+final class SeedIdentifier {
+  private static final char SEPARATOR = '|';
+  private static final String DELETED = "deleted";
+
+  private SeedIdentifier() {
+  }
+
+  static String valueOf(Map<String, Object> document) {
+    AlfrescoNodeChange node = AlfrescoNodeChange.fromDocument(document);
+    if (node.isDeleted()) {
+      return node.getUuid() + SEPARATOR + DELETED;
+    }
+    if (node.getVersion() == null && node.getAclChangesetId() == null && node.getContentUrl() == null) {
+      return node.getUuid();
+    }
+    StringBuilder identifier = new StringBuilder(node.getUuid());
+    identifier.append(SEPARATOR).append(toString(node.getVersion()));
+    identifier.append(SEPARATOR).append(toString(node.getAclChangesetId()));
+    identifier.append(SEPARATOR);
+    if (node.getContentUrl() != null) {
+      // Content URLs are never reused, a hash of the URL is as good as a hash of the content
+      identifier.append(Hashing.sha1().hashString(node.getContentUrl(), Charsets.UTF_8));
+    }
+    return identifier.toString();
+  }
+
+  static String getUuid(String identifier) {
+    int separator = identifier.indexOf(SEPARATOR);
+    return (separator < 0 ? identifier : identifier.substring(0, separator));
+  }
+
+  /**
+   * @return the state of the node, or an empty version if it was seeded without any
+   */
+  static String getVersion(String identifier) {
+    int separator = identifier.indexOf(SEPARATOR);
+    return (separator < 0 ? "" : identifier.substring(separator + 1));
+  }
+
+  static boolean isDeleted(String identifier) {
+    return DELETED.equals(getVersion(identifier));
+  }
+
+  private static String toString(Long value) {
+    return (value == null ? "" : value.toString());
+  }
+}
@@ -0,0 +1,135 @@
+package org.alfresco.consulting.manifold;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.alfresco.consulting.indexer.client.AlfrescoClient;
+import org.alfresco.consulting.indexer.client.AlfrescoSnapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exports a range of node ids of the store snapshot in parallel: the range is split into contiguous
+ * partitions, each one paged through by its own background thread, while the pages already fetched are
+ * being seeded; at most one page per partition is kept in memory, waiting to be seeded.
+ *
+ * Pages are fully read before being queued, so that no HTTP connection is held while they wait, and
+ * seeds are only added by the thread calling {@link #next()}, as seeding activities are not thread-safe.
+ */
+class SnapshotPartitions {
+  private static final Logger logger = LoggerFactory.getLogger(SnapshotPartitions.class);
+
+  private final AlfrescoClient alfrescoClient;
+  private final BlockingQueue<Page> pages;
+  private final List<Thread> threads = new ArrayList<Thread>();
+  private int running;
+
+  /**
+   * @param fromNodeId
+   *        the id of the node the range starts after
+   * @param toNodeId
+   *        the id of the last node of the range
+   * @param partitions
+   *        the number of partitions exported in parallel
+   */
+  SnapshotPartitions(AlfrescoClient alfrescoClient, long fromNodeId, long toNodeId, int partitions) {
+    this.alfrescoClient = alfrescoClient;
+    long span = toNodeId - fromNodeId;
+    int count = (int) Math.max(1, Math.min(partitions, span));
+    this.pages = new ArrayBlockingQueue<Page>(count);
+    long start = fromNodeId;
+    for (int i = 1; i <= count; i++) {
+      final long lastNodeId = start;
+      final long end = (i == count ? toNodeId : fromNodeId + span * i / count);
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          fetchPages(lastNodeId, end);
+        }
+      }, "alfresco-snapshot-partition-" + i);
+      thread.setDaemon(true);
+      threads.add(thread);
+      start = end;
+    }
+  }
+
+  void start() {
+    running = threads.size();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+  }
+
+  /**
+   * @return the documents of the next page of any partition, or null once all the partitions have
+   *         been exported
+   * @throws RuntimeException
+   *         the exception thrown while fetching the page, if any
+   */
+  List<Map<String, Object>> next() throws InterruptedException {
+    while (running > 0) {
+      Page page = pages.take();
+      if (page.failure != null) {
+        running = 0;
+        throw page.failure;
+      }
+      if (page.documents != null) {
+        return page.documents;
+      }
+      running--;
+    }
+    return null;
+  }
+
+  /**
+   * Stops exporting partitions; pages already fetched are discarded.
+   */
+  void close() {
+    for (Thread thread : threads) {
+      thread.interrupt();
+    }
+    pages.clear();
+  }
+
+  private void fetchPages(long lastNodeId, long toNodeId) {
+    try {
+      Long next = lastNodeId;
+      do {
+        AlfrescoSnapshot snapshot = alfrescoClient.fetchSnapshot(next, toNodeId, 0);
+        List<Map<String, Object>> documents = new ArrayList<Map<String, Object>>();
+        try {
+          for (Map<String, Object> document : snapshot.getDocuments()) {
+            documents.add(document);
+          }
+          next = snapshot.getLastNodeId();
+        } finally {
+          snapshot.close();
+        }
+        pages.put(new Page(documents, null));
+        logger.debug("Exported partition ({}, {}] up to node {}", lastNodeId, toNodeId, next);
+      } while (next != null);
+      pages.put(new Page(null, null));
+    } catch (InterruptedException e) {
+      // Closed by the seeding thread
+    } catch (RuntimeException e) {
+      try {
+        pages.put(new Page(null, e));
+      } catch (InterruptedException interrupted) {
+        logger.debug("Snapshot export closed, discarding failure", e);
+      }
+    }
+  }
+
+  private static class Page {
+    private final List<Map<String, Object>> documents;
+    private final RuntimeException failure;
+
+    Page(List<Map<String, Object>> documents, RuntimeException failure) {
+      this.documents = documents;
+      this.failure = failure;
+    }
+  }
+}
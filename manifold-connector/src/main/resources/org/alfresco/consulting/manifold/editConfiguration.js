@@ -35,7 +35,72 @@ function checkConfigForSave() {
 		editconnection.storeid.focus();
 		return false;
 	}
+	if (!isPositiveInteger(editconnection.maxconnections.value)) {
+		alert("Max connections must be a positive number!");
+		SelectTab("Server");
+		editconnection.maxconnections.focus();
+		return false;
+	}
+	if (!isPositiveInteger(editconnection.maxconnectionsperroute.value)) {
+		alert("Max connections per host must be a positive number!");
+		SelectTab("Server");
+		editconnection.maxconnectionsperroute.focus();
+		return false;
+	}
+	if (!isPositiveInteger(editconnection.fetchthreads.value)) {
+		alert("Parallel fetches must be a positive number!");
+		SelectTab("Server");
+		editconnection.fetchthreads.focus();
+		return false;
+	}
+	if (!/^[0-9]+$/.test(editconnection.prefetchpages.value)) {
+		alert("Prefetched pages must be a number!");
+		SelectTab("Server");
+		editconnection.prefetchpages.focus();
+		return false;
+	}
+	if (!/^[0-9]+$/.test(editconnection.pagesize.value)) {
+		alert("Initial page size must be a number!");
+		SelectTab("Server");
+		editconnection.pagesize.focus();
+		return false;
+	}
+	if (!isPositiveInteger(editconnection.maxpagesize.value)) {
+		alert("Max page size must be a positive number!");
+		SelectTab("Server");
+		editconnection.maxpagesize.focus();
+		return false;
+	}
+	if (!isPositiveInteger(editconnection.snapshotpartitions.value)) {
+		alert("Snapshot partitions must be a positive number!");
+		SelectTab("Server");
+		editconnection.snapshotpartitions.focus();
+		return false;
+	}
+	if (!isPositiveInteger(editconnection.shardcount.value)) {
+		alert("Shard count must be a positive number!");
+		SelectTab("Server");
+		editconnection.shardcount.focus();
+		return false;
+	}
+	if (!/^[0-9]+$/.test(editconnection.shardindex.value)
+			|| parseInt(editconnection.shardindex.value, 10) >= parseInt(editconnection.shardcount.value, 10)) {
+		alert("Shard index must be a number lower than the shard count!");
+		SelectTab("Server");
+		editconnection.shardindex.focus();
+		return false;
+	}
+	if (!/^[0-9]+$/.test(editconnection.checkpointpages.value)) {
+		alert("Pages per seeding run must be a number!");
+		SelectTab("Server");
+		editconnection.checkpointpages.focus();
+		return false;
+	}
 	return true;
 }
+
+function isPositiveInteger(value) {
+	return /^[1-9][0-9]*$/.test(value);
+}
 // -->
 </script>
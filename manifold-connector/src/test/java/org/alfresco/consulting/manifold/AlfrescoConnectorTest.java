@@ -1,24 +1,45 @@
 package org.alfresco.consulting.manifold;
 
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
 import com.google.gson.Gson;
 import org.alfresco.consulting.indexer.client.AlfrescoClient;
+import org.alfresco.consulting.indexer.client.AlfrescoDownException;
 import org.alfresco.consulting.indexer.client.AlfrescoResponse;
+import org.alfresco.consulting.indexer.client.AlfrescoSnapshot;
+import org.alfresco.consulting.indexer.client.AsyncAlfrescoClient;
+import org.alfresco.consulting.indexer.client.ChangesCursor;
 import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
 import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
 import org.apache.manifoldcf.crawler.interfaces.DocumentSpecification;
 import org.apache.manifoldcf.crawler.interfaces.IProcessActivity;
+import org.apache.manifoldcf.crawler.interfaces.IRepositoryConnector;
 import org.apache.manifoldcf.crawler.system.SeedingActivity;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.util.*;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
@@ -27,6 +48,9 @@ import static org.mockito.Mockito.*;
 public class AlfrescoConnectorTest {
   private final Gson gson = new Gson();
 
+  @Rule
+  public TemporaryFolder temporaryFiles = new TemporaryFolder();
+
   @Mock
   private AlfrescoClient client;
   private AlfrescoConnector connector;
@@ -72,6 +96,243 @@ public class AlfrescoConnectorTest {
     verify(client, times(1)).fetchNodes(eq(lastTransactionId), eq(lastAclChangesetId));
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void whenPrefetchingPagesAllPagesShouldBeSeededInOrder() throws Exception {
+    TestDocument first = new TestDocument();
+    TestDocument second = new TestDocument();
+    second.put("uuid", "def456");
+    when(client.fetchNodes(0, 0))
+            .thenReturn(new AlfrescoResponse(5, 5, "", "",
+                    Arrays.<Map<String, Object>>asList(first)));
+    when(client.fetchNodes(5, 5))
+            .thenReturn(new AlfrescoResponse(9, 9, "", "",
+                    Arrays.<Map<String, Object>>asList(second)));
+    when(client.fetchNodes(9, 9))
+            .thenReturn(new AlfrescoResponse(9, 9));
+    connector.setPrefetchPages(1);
+
+    SeedingActivity seedingActivity = mock(SeedingActivity.class);
+    String seedVersion = connector.addSeedDocuments(seedingActivity, null, "", 0, 0);
+
+    InOrder inOrder = inOrder(seedingActivity);
+    inOrder.verify(seedingActivity).addSeedDocument(eq(TestDocument.uuid));
+    inOrder.verify(seedingActivity).addSeedDocument(eq("def456"));
+    assertEquals("9|9", seedVersion);
+  }
+
+  @Test
+  public void whenPageSizeIsConfiguredItShouldGrowWhilePagesAreFastAndSmall() throws Exception {
+    when(client.fetchNodes(any(ChangesCursor.class), anyInt(), anyInt()))
+            .thenReturn(new AlfrescoResponse(5, 5))
+            .thenReturn(new AlfrescoResponse(10, 10))
+            .thenReturn(new AlfrescoResponse(10, 10));
+    connector.setPageSizeController(new PageSizeController(10, 15, 60000L, 1000));
+
+    connector.addSeedDocuments(mock(SeedingActivity.class), null, "", 0, 0);
+
+    InOrder inOrder = inOrder(client);
+    inOrder.verify(client).fetchNodes(new ChangesCursor(0L, 0L), 10, 10);
+    inOrder.verify(client).fetchNodes(new ChangesCursor(5L, 5L), 15, 15);
+    inOrder.verify(client).fetchNodes(new ChangesCursor(10L, 10L), 15, 15);
+    verify(client, never()).fetchNodes(anyLong(), anyLong());
+  }
+
+  @Test
+  public void pagesShouldBeTimedUntilTheyAreFullyRead() throws Exception {
+    when(client.fetchNodes(any(ChangesCursor.class), anyInt(), anyInt()))
+            .thenReturn(new AlfrescoResponse(5, 5, "", "",
+                    Arrays.<Map<String, Object>>asList(new TestDocument())))
+            .thenReturn(new AlfrescoResponse(5, 5));
+    connector.setPageSizeController(new PageSizeController(10, 15, 50L, 1000));
+    SeedingActivity seedingActivity = mock(SeedingActivity.class);
+    // Documents are decoded while they are seeded, so a slow stream is only noticed meanwhile
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        Thread.sleep(100L);
+        return null;
+      }
+    }).when(seedingActivity).addSeedDocument(anyString());
+
+    connector.addSeedDocuments(seedingActivity, null, "", 0, 0);
+
+    InOrder inOrder = inOrder(client);
+    inOrder.verify(client).fetchNodes(new ChangesCursor(0L, 0L), 10, 10);
+    inOrder.verify(client).fetchNodes(new ChangesCursor(5L, 5L), 5, 5);
+  }
+
+  @Test
+  public void whenATransactionWasPartiallySeededItShouldBeResumedFromItsLastNode() throws Exception {
+    when(client.fetchNodes(any(ChangesCursor.class), anyInt(), anyInt()))
+            .thenReturn(new AlfrescoResponse(new ChangesCursor(7L, 50L, 4L, null), "", "",
+                    Collections.<Map<String, Object>>emptyList()))
+            .thenReturn(new AlfrescoResponse(new ChangesCursor(8L, null, 5L, null), "", "",
+                    Collections.<Map<String, Object>>emptyList()));
+    when(client.fetchNodes(8L, 5L)).thenReturn(new AlfrescoResponse(8, 5));
+
+    String seedVersion = connector.addSeedDocuments(mock(SeedingActivity.class), null, "7:42|3", 0, 0);
+
+    InOrder inOrder = inOrder(client);
+    inOrder.verify(client).fetchNodes(new ChangesCursor(7L, 42L, 3L, null), 0, 0);
+    inOrder.verify(client).fetchNodes(new ChangesCursor(7L, 50L, 4L, null), 0, 0);
+    inOrder.verify(client).fetchNodes(8L, 5L);
+    assertEquals("8|5", seedVersion);
+  }
+
+  @Test
+  public void whenOnlyTransactionsHaveChangesTheyShouldBeDrainedWithoutPollingAclChangesets() throws Exception {
+    when(client.fetchNodes(0L, 0L)).thenReturn(new AlfrescoResponse(5, 0));
+    when(client.fetchNodes(any(ChangesCursor.class), anyInt(), anyInt()))
+            .thenReturn(new AlfrescoResponse(9, 0))
+            .thenReturn(new AlfrescoResponse(9, 0));
+
+    String seedVersion = connector.addSeedDocuments(mock(SeedingActivity.class), null, "", 0, 0);
+
+    InOrder inOrder = inOrder(client);
+    inOrder.verify(client).fetchNodes(0L, 0L);
+    inOrder.verify(client).fetchNodes(new ChangesCursor(5L, 0L), 0, AlfrescoClient.SKIP);
+    inOrder.verify(client).fetchNodes(new ChangesCursor(9L, 0L), 0, AlfrescoClient.SKIP);
+    verify(client, times(2)).fetchNodes(any(ChangesCursor.class), anyInt(), anyInt());
+    assertEquals("9|0", seedVersion);
+  }
+
+  @Test
+  public void inContinuousJobsSeedingRunsShouldEndAfterTheCheckpointPages() throws Exception {
+    when(client.fetchNodes(0L, 0L)).thenReturn(new AlfrescoResponse(5, 5, "", "", documents("a", 100)));
+    when(client.fetchNodes(5L, 5L)).thenReturn(new AlfrescoResponse(9, 9, "", "", documents("b", 100)));
+    when(client.fetchNodes(9L, 9L)).thenReturn(new AlfrescoResponse(9, 9));
+    connector.setCheckpointPages(1);
+    SeedingActivity seedingActivity = mock(SeedingActivity.class);
+
+    // ManifoldCF records each position once its seeds are committed
+    assertEquals("5|5", connector.addSeedDocuments(seedingActivity, null, "",
+            0, IRepositoryConnector.JOBMODE_CONTINUOUS));
+    assertEquals("9|9", connector.addSeedDocuments(seedingActivity, null, "5|5",
+            0, IRepositoryConnector.JOBMODE_CONTINUOUS));
+
+    verify(client, times(1)).fetchNodes(0L, 0L);
+    verify(client, times(1)).fetchNodes(5L, 5L);
+    verify(client, never()).fetchNodes(9L, 9L);
+  }
+
+  @Test
+  public void inOnceOnlyJobsSeedingRunsShouldEndAfterTheCheckpointPages() throws Exception {
+    when(client.fetchNodes(0L, 0L)).thenReturn(new AlfrescoResponse(5, 5, "", "", documents("a", 100)));
+    when(client.fetchNodes(5L, 5L)).thenReturn(new AlfrescoResponse(9, 9, "", "", documents("b", 100)));
+    when(client.fetchNodes(9L, 9L)).thenReturn(new AlfrescoResponse(9, 9));
+    connector.setCheckpointPages(1);
+
+    // The next start of the job resumes from there
+    assertEquals("5|5", connector.addSeedDocuments(mock(SeedingActivity.class), null, "",
+            0, IRepositoryConnector.JOBMODE_ONCEONLY));
+    assertEquals("9|9", connector.addSeedDocuments(mock(SeedingActivity.class), null, "5|5",
+            0, IRepositoryConnector.JOBMODE_ONCEONLY));
+  }
+
+  @Test
+  public void withoutCheckpointPagesTheWholeChangesFeedShouldBeSeededInOneRun() throws Exception {
+    when(client.fetchNodes(0L, 0L)).thenReturn(new AlfrescoResponse(5, 5, "", "", documents("a", 100)));
+    when(client.fetchNodes(5L, 5L)).thenReturn(new AlfrescoResponse(9, 9, "", "", documents("b", 100)));
+    when(client.fetchNodes(9L, 9L)).thenReturn(new AlfrescoResponse(9, 9));
+
+    assertEquals("9|9", connector.addSeedDocuments(mock(SeedingActivity.class), null, "",
+            0, IRepositoryConnector.JOBMODE_CONTINUOUS));
+  }
+
+  @Test
+  public void whenPrefetchingSeedingRunsShouldEndAfterTheCheckpointPages() throws Exception {
+    when(client.fetchNodes(0L, 0L)).thenReturn(new AlfrescoResponse(5, 5, "", "", documents("a", 1)));
+    when(client.fetchNodes(5L, 5L)).thenReturn(new AlfrescoResponse(9, 9, "", "", documents("b", 1)));
+    when(client.fetchNodes(9L, 9L)).thenReturn(new AlfrescoResponse(9, 9));
+    connector.setCheckpointPages(1);
+    connector.setPrefetchPages(2);
+    SeedingActivity seedingActivity = mock(SeedingActivity.class);
+
+    assertEquals("5|5", connector.addSeedDocuments(seedingActivity, null, "",
+            0, IRepositoryConnector.JOBMODE_CONTINUOUS));
+
+    // The pages prefetched beyond the last seeded one are read again by the next run
+    verify(seedingActivity).addSeedDocument("a0");
+    verify(seedingActivity, never()).addSeedDocument("b0");
+  }
+
+  @Test
+  public void whenThereIsNoSeedVersionTheStoreShouldBeSeededFromItsSnapshot() throws Exception {
+    AlfrescoSnapshot first = snapshot(documents("a", 2), new ChangesCursor(5, 5), 800L);
+    AlfrescoSnapshot last = snapshot(documents("b", 1), new ChangesCursor(6, 7), null);
+    when(client.fetchSnapshot(0L, 0)).thenReturn(first);
+    when(client.fetchSnapshot(800L, 0)).thenReturn(last);
+    when(client.fetchNodes(5L, 5L)).thenReturn(new AlfrescoResponse(5, 5));
+    connector.setBootstrapSnapshot(true);
+    SeedingActivity seedingActivity = mock(SeedingActivity.class);
+
+    String seedVersion = connector.addSeedDocuments(seedingActivity, null, "", 0, 0);
+
+    InOrder inOrder = inOrder(seedingActivity);
+    inOrder.verify(seedingActivity).addSeedDocument("a0");
+    inOrder.verify(seedingActivity).addSeedDocument("a1");
+    inOrder.verify(seedingActivity).addSeedDocument("b0");
+    verify(first).close();
+    verify(last).close();
+    // Nodes changed while the snapshot was read come with the changes feed, from where the snapshot started
+    verify(client).fetchNodes(5L, 5L);
+    verify(client, never()).fetchNodes(0L, 0L);
+    assertEquals("5|5", seedVersion);
+  }
+
+  @Test
+  public void whenTheSnapshotIsPartitionedItsRangesShouldBeExportedInParallel() throws Exception {
+    AlfrescoSnapshot first = snapshot(documents("a", 1), new ChangesCursor(5, 5), 100L);
+    when(first.getMaxNodeId()).thenReturn(300L);
+    AlfrescoSnapshot lower = snapshot(documents("b", 2), new ChangesCursor(6, 6), null);
+    AlfrescoSnapshot upper = snapshot(documents("c", 1), new ChangesCursor(7, 7), null);
+    when(client.fetchSnapshot(0L, 0)).thenReturn(first);
+    when(client.fetchSnapshot(100L, Long.valueOf(200), 0)).thenReturn(lower);
+    when(client.fetchSnapshot(200L, Long.valueOf(300), 0)).thenReturn(upper);
+    when(client.fetchNodes(5L, 5L)).thenReturn(new AlfrescoResponse(5, 5));
+    connector.setBootstrapSnapshot(true);
+    connector.setSnapshotPartitions(2);
+    SeedingActivity seedingActivity = mock(SeedingActivity.class);
+
+    String seedVersion = connector.addSeedDocuments(seedingActivity, null, "", 0, 0);
+
+    verify(seedingActivity).addSeedDocument("a0");
+    verify(seedingActivity).addSeedDocument("b0");
+    verify(seedingActivity).addSeedDocument("b1");
+    verify(seedingActivity).addSeedDocument("c0");
+    verify(lower).close();
+    verify(upper).close();
+    verify(client, never()).fetchSnapshot(100L, 0);
+    // Nodes created after the first page come with the changes feed
+    verify(client).fetchNodes(5L, 5L);
+    assertEquals("5|5", seedVersion);
+  }
+
+  @Test
+  public void whenThereIsASeedVersionTheSnapshotShouldNotBeUsed() throws Exception {
+    when(client.fetchNodes(3L, 3L)).thenReturn(new AlfrescoResponse(3, 3));
+    connector.setBootstrapSnapshot(true);
+
+    assertEquals("3|3", connector.addSeedDocuments(mock(SeedingActivity.class), null, "3|3", 0, 0));
+
+    verify(client, never()).fetchSnapshot(anyLong(), anyInt());
+  }
+
+  @Test
+  public void whenPagesAreSlowOrLargeThePageSizeShouldShrink() throws Exception {
+    PageSizeController controller = new PageSizeController(64, 1000, 1000L, 100);
+
+    controller.pageFetched(5000L, 1);
+    assertEquals(32, controller.getPageSize());
+    controller.pageFetched(10L, 500);
+    assertEquals(16, controller.getPageSize());
+    controller.pageFetched(700L, 10);
+    assertEquals(16, controller.getPageSize());
+    controller.pageFetched(10L, 10);
+    assertEquals(32, controller.getPageSize());
+  }
+
   @SuppressWarnings("unchecked")
   @Test
   public void whenADocumentIsReturnedItShouldBeAddedToManifold() throws Exception {
@@ -83,44 +344,244 @@ public class AlfrescoConnectorTest {
     SeedingActivity seedingActivity = mock(SeedingActivity.class);
     connector.addSeedDocuments(seedingActivity, new DocumentSpecification(), 0, 0);
 
-    String json = gson.toJson(testDocument);
-    verify(seedingActivity).addSeedDocument(eq(json));
+    verify(seedingActivity).addSeedDocument(eq(TestDocument.uuid));
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void nodesShouldBeSeededWithTheirState() throws Exception {
+    TestDocument changed = new TestDocument();
+    changed.put("version", "3");
+    changed.put("aclChangesetId", "12");
+    TestDocument deleted = new TestDocument();
+    deleted.put("uuid", "def456");
+    deleted.setDeleted(true);
+    when(client.fetchNodes(anyInt(), anyInt()))
+            .thenReturn(new AlfrescoResponse(0, 0, "", "",
+                    Arrays.<Map<String, Object>>asList(changed, deleted)));
+
+    SeedingActivity seedingActivity = mock(SeedingActivity.class);
+    connector.addSeedDocuments(seedingActivity, new DocumentSpecification(), 0, 0);
+
+    verify(seedingActivity).addSeedDocument(TestDocument.uuid + "|3|12|");
+    verify(seedingActivity).addSeedDocument("def456|deleted");
+  }
+
+  @Test
+  public void seedIdentifiersShouldChangeWithTheVersionTheAclOrTheContentOfTheNode() throws Exception {
+    String identifier = SeedIdentifier.valueOf(node(3L, 12L, "store://2014/3/5/abc.bin"));
+
+    assertEquals(identifier, SeedIdentifier.valueOf(node(3L, 12L, "store://2014/3/5/abc.bin")));
+    assertFalse(identifier.equals(SeedIdentifier.valueOf(node(4L, 12L, "store://2014/3/5/abc.bin"))));
+    assertFalse(identifier.equals(SeedIdentifier.valueOf(node(3L, 13L, "store://2014/3/5/abc.bin"))));
+    assertFalse(identifier.equals(SeedIdentifier.valueOf(node(3L, 12L, "store://2014/3/6/def.bin"))));
+    assertEquals(TestDocument.uuid, SeedIdentifier.getUuid(identifier));
+    assertFalse(SeedIdentifier.isDeleted(identifier));
+  }
+
+  @SuppressWarnings("unchecked")
   @Test
   public void whenProcessingDocumentsNodeRefsAreUsedAsDocumentURI() throws Exception {
-    TestDocument testDocument = new TestDocument();
-    String json = gson.toJson(testDocument);
+    when(client.fetchMetadataBatch(any(Collection.class))).thenReturn(Collections.singletonMap(
+            TestDocument.uuid, Collections.<String, Object>singletonMap("name", "First")));
     IProcessActivity activities = mock(IProcessActivity.class);
-    connector.processDocuments(new String[]{json}, null, activities, null, null, 0);
+    connector.processDocuments(new String[]{TestDocument.uuid}, null, activities, null, null, 0);
 
     ArgumentCaptor<RepositoryDocument> rd = ArgumentCaptor.forClass(RepositoryDocument.class);
     verify(activities)
-            .ingestDocument(eq(TestDocument.uuid), anyString(),
+            .ingestDocumentWithException(eq(TestDocument.uuid), anyString(),
                     eq(TestDocument.uuid), rd.capture());
+    assertEquals(TestDocument.uuid, rd.getValue().getFileName());
+    assertEquals(TestDocument.uuid, rd.getValue().getField("uuid")[0]);
+    assertEquals("First", rd.getValue().getField("name")[0]);
+  }
 
-    Iterator<String> i = rd.getValue().getFields();
-    while(i.hasNext()) {
-      String fieldName = i.next();
-      Object value1 = rd.getValue().getField(fieldName)[0];
-      Object value2 = testDocument.getRepositoryDocument().getField(fieldName)[0];
-      assert value1.equals(value2);
-    }
+  @SuppressWarnings("unchecked")
+  @Test
+  public void documentsShouldBeVersionedFromTheirSeededStateWithoutCallingAlfresco() throws Exception {
+    String[] versions = connector.getDocumentVersions(
+            new String[]{TestDocument.uuid + "|3|12|", "def456|deleted", "ghi789"},
+            new String[3], null, null, 0, true);
+
+    assertArrayEquals(new String[]{"3|12|", "deleted", ""}, versions);
+    verify(client, never()).fetchMetadataBatch(any(Collection.class));
+    verify(client, never()).fetchMetadata(anyString());
   }
 
+  @SuppressWarnings("unchecked")
   @Test
-  public void whenProcessingDeletionShouldBeRegisteredAsDeletions() throws Exception {
-    TestDocument testDocument = new TestDocument();
-    testDocument.setDeleted(true);
+  public void whenProcessingDocumentsMetadataShouldBeFetchedInOneBatch() throws Exception {
+    Map<String, Map<String, Object>> metadata = new HashMap<String, Map<String, Object>>();
+    metadata.put(TestDocument.uuid, Collections.<String, Object>singletonMap("name", "First"));
+    metadata.put("def456", Collections.<String, Object>singletonMap("name", "Second"));
+    when(client.fetchMetadataBatch(any(Collection.class))).thenReturn(metadata);
+    IProcessActivity activities = mock(IProcessActivity.class);
+    String[] identifiers = new String[]{TestDocument.uuid + "|3|12|", "def456|1|12|", "ghi789|2|12|"};
 
-    String json = gson.toJson(testDocument);
+    String[] versions = connector.getDocumentVersions(identifiers, new String[3], null, null, 0, true);
+    connector.processDocuments(identifiers, versions, activities, null, new boolean[]{false, false, true}, 0);
+
+    // Only the documents whose version changed are fetched
+    ArgumentCaptor<Collection> fetched = ArgumentCaptor.forClass(Collection.class);
+    verify(client, times(1)).fetchMetadataBatch(fetched.capture());
+    verify(client, never()).fetchMetadata(anyString());
+    assertEquals(Arrays.asList(TestDocument.uuid, "def456"), new ArrayList<String>(fetched.getValue()));
+    verify(activities).ingestDocumentWithException(eq(TestDocument.uuid), eq("3|12|"),
+            eq(TestDocument.uuid), any(RepositoryDocument.class));
+    verify(activities).ingestDocumentWithException(eq("def456"), eq("1|12|"),
+            eq("def456"), any(RepositoryDocument.class));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void whenProcessingDocumentsContentsShouldBeIngestedInOrderWithTheirLength() throws Exception {
+    Map<String, Map<String, Object>> metadata = new HashMap<String, Map<String, Object>>();
+    metadata.put(TestDocument.uuid, Collections.<String, Object>singletonMap("contentUrlPath", "/first"));
+    metadata.put("def456", Collections.<String, Object>singletonMap("contentUrlPath", "/second"));
+    when(client.fetchMetadataBatch(any(Collection.class))).thenReturn(metadata);
+    when(client.fetchContent("/first")).thenReturn(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+    when(client.fetchContent("/second")).thenReturn(new ByteArrayInputStream(new byte[]{1}));
     IProcessActivity activities = mock(IProcessActivity.class);
-    connector.processDocuments(new String[]{json}, null, activities, null, null, 0);
 
-    verify(activities).deleteDocument(eq(TestDocument.uuid));
-    verify(activities, never()).ingestDocument(eq(TestDocument.uuid), anyString(), anyString(),
+    connector.processDocuments(new String[]{TestDocument.uuid, "def456"},
+            null, activities, null, null, 0);
+
+    ArgumentCaptor<RepositoryDocument> rd = ArgumentCaptor.forClass(RepositoryDocument.class);
+    InOrder inOrder = inOrder(activities);
+    inOrder.verify(activities).ingestDocumentWithException(eq(TestDocument.uuid), anyString(),
+            eq(TestDocument.uuid), rd.capture());
+    inOrder.verify(activities).ingestDocumentWithException(eq("def456"), anyString(),
+            eq("def456"), rd.capture());
+    assertEquals(3L, rd.getAllValues().get(0).getBinaryLength());
+    assertEquals(1L, rd.getAllValues().get(1).getBinaryLength());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void withANonBlockingClientMetadataAndContentsShouldBeFetchedWithoutBlocking() throws Exception {
+    AsyncAlfrescoClient asyncClient = mock(AsyncAlfrescoClient.class);
+    connector.setClient(asyncClient);
+    File spooled = temporaryFiles.newFile("content");
+    Files.write(new byte[]{1, 2, 3}, spooled);
+    when(asyncClient.fetchMetadataBatchAsync(any(Collection.class))).thenReturn(
+            Futures.immediateFuture(Collections.<String, Map<String, Object>>singletonMap(TestDocument.uuid,
+                    Collections.<String, Object>singletonMap("contentUrlPath", "/first"))));
+    when(asyncClient.fetchContentAsync("/first")).thenReturn(
+            Futures.<InputStream>immediateFuture(new FileInputStream(spooled)));
+    IProcessActivity activities = mock(IProcessActivity.class);
+
+    connector.processDocuments(new String[]{TestDocument.uuid}, null, activities, null, null, 0);
+
+    ArgumentCaptor<RepositoryDocument> rd = ArgumentCaptor.forClass(RepositoryDocument.class);
+    verify(activities).ingestDocumentWithException(eq(TestDocument.uuid), anyString(),
+            eq(TestDocument.uuid), rd.capture());
+    assertEquals(3L, rd.getValue().getBinaryLength());
+    verify(asyncClient, never()).fetchMetadataBatch(any(Collection.class));
+    verify(asyncClient, never()).fetchContent(anyString());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void whenOnlyTheAclOfANodeChangedItShouldBeIngestedWithItsContent() throws Exception {
+    when(client.fetchMetadataBatch(any(Collection.class))).thenReturn(Collections.singletonMap(
+            TestDocument.uuid, Collections.<String, Object>singletonMap("contentUrlPath", "/first")));
+    when(client.fetchContent("/first")).thenReturn(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+    IProcessActivity activities = mock(IProcessActivity.class);
+
+    connector.processDocuments(new String[]{TestDocument.uuid}, null, activities, null, null, 0);
+
+    // Ingesting replaces the whole document, its content would be lost otherwise
+    ArgumentCaptor<RepositoryDocument> rd = ArgumentCaptor.forClass(RepositoryDocument.class);
+    verify(activities).ingestDocumentWithException(eq(TestDocument.uuid), anyString(),
+            eq(TestDocument.uuid), rd.capture());
+    assertEquals(3L, rd.getValue().getBinaryLength());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void whenTheAclOfANodeChangedItsReadableAuthoritiesShouldBeItsSecurityTokens() throws Exception {
+    Map<String, Object> details = new HashMap<String, Object>();
+    details.put("readableAuthorities", Arrays.asList("GROUP_EVERYONE", "admin"));
+    when(client.fetchMetadataBatch(any(Collection.class))).thenReturn(
+            Collections.<String, Map<String, Object>>singletonMap(TestDocument.uuid, details));
+    IProcessActivity activities = mock(IProcessActivity.class);
+
+    connector.processDocuments(new String[]{TestDocument.uuid}, null, activities, null, null, 0);
+
+    ArgumentCaptor<RepositoryDocument> rd = ArgumentCaptor.forClass(RepositoryDocument.class);
+    verify(activities).ingestDocumentWithException(eq(TestDocument.uuid), anyString(),
+            eq(TestDocument.uuid), rd.capture());
+    assertArrayEquals(new String[]{"GROUP_EVERYONE", "admin"},
+            rd.getValue().getSecurityACL(RepositoryDocument.SECURITY_TYPE_DOCUMENT));
+    assertArrayEquals(new String[]{"DEAD_AUTHORITY"},
+            rd.getValue().getSecurityDenyACL(RepositoryDocument.SECURITY_TYPE_DOCUMENT));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void whenTheVersionOfADocumentDidNotChangeItShouldNotBeFetchedAgain() throws Exception {
+    IProcessActivity activities = mock(IProcessActivity.class);
+
+    connector.processDocuments(new String[]{TestDocument.uuid + "|3|12|"}, new String[]{"3|12|"}, activities,
+            null, new boolean[]{true}, 0);
+
+    verify(client, never()).fetchMetadataBatch(any(Collection.class));
+    verify(activities, never()).ingestDocumentWithException(anyString(), anyString(), anyString(),
             any(RepositoryDocument.class));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void whenANodeIsDeletedOrRemovedAfterBeingSeededItShouldBeDeleted() throws Exception {
+    when(client.fetchMetadataBatch(any(Collection.class))).thenReturn(
+            Collections.<String, Map<String, Object>>singletonMap("def456",
+                    Collections.<String, Object>singletonMap("name", "Second")));
+    IProcessActivity activities = mock(IProcessActivity.class);
+
+    connector.processDocuments(new String[]{TestDocument.uuid + "|3|12|", "def456|5|12|", "ghi789|deleted"},
+            new String[]{"3|12|", "5|12|", "deleted"}, activities, null, new boolean[]{false, false, false}, 0);
+
+    verify(activities).deleteDocument(TestDocument.uuid);
+    verify(activities).deleteDocument("ghi789");
+    ArgumentCaptor<Collection> fetched = ArgumentCaptor.forClass(Collection.class);
+    verify(client).fetchMetadataBatch(fetched.capture());
+    assertEquals(Arrays.asList(TestDocument.uuid, "def456"), new ArrayList<String>(fetched.getValue()));
+    ArgumentCaptor<RepositoryDocument> rd = ArgumentCaptor.forClass(RepositoryDocument.class);
+    verify(activities).ingestDocumentWithException(eq("def456"), anyString(), eq("def456"), rd.capture());
+    assertEquals("Second", rd.getValue().getField("name")[0]);
+  }
+
+  @Test
+  public void whenDisconnectingTheClientShouldBeClosed() throws Exception {
+    connector.disconnect();
+
+    verify(client).close();
+  }
+
+  private List<Map<String, Object>> documents(String prefix, int count) {
+    List<Map<String, Object>> documents = new ArrayList<Map<String, Object>>(count);
+    for (int i = 0; i < count; i++) {
+      TestDocument document = new TestDocument();
+      document.put("uuid", prefix + i);
+      documents.add(document);
+    }
+    return documents;
+  }
+
+  private AlfrescoSnapshot snapshot(List<Map<String, Object>> documents, ChangesCursor cursor, Long lastNodeId) {
+    AlfrescoSnapshot snapshot = mock(AlfrescoSnapshot.class);
+    when(snapshot.getDocuments()).thenReturn(documents);
+    when(snapshot.getCursor()).thenReturn(cursor);
+    when(snapshot.getLastNodeId()).thenReturn(lastNodeId);
+    return snapshot;
+  }
 
+  private Map<String, Object> node(Long version, Long aclChangesetId, String contentUrl) {
+    TestDocument node = new TestDocument();
+    node.put("version", String.valueOf(version));
+    node.put("aclChangesetId", String.valueOf(aclChangesetId));
+    node.put("contentUrl", contentUrl);
+    return node;
   }
 
   @SuppressWarnings("serial")